@@ -0,0 +1,109 @@
+import java.io.*;
+import java.util.*;
+
+// Aligns each profile to a reference by cross-correlation before passing it on.
+// Without a given reference the first profile becomes the reference.
+public class AlignSink implements ProfileSink {
+	ProfileSink m_sink;
+	AngleProfile m_ref;
+
+	public AlignSink(ProfileSink sink, double[] reference){
+		m_sink = sink;
+		if (reference != null)
+			m_ref = new AngleProfile(reference);
+	}
+
+	public void begin(int num_ang) throws IOException {
+		m_sink.begin(num_ang);
+	}
+
+	public synchronized void add(String image, String roi, double cx, double cy, double[] profile) throws IOException {
+		AngleProfile prof = new AngleProfile(profile);
+		if (m_ref == null){
+			m_ref = prof;
+		}else{
+			prof.alignTo(m_ref);
+		}
+		m_sink.add(image, roi, cx, cy, prof.toArray());
+	}
+
+	public void close() throws IOException {
+		m_sink.close();
+	}
+
+	// First profile of a file written by BinarySink or DelimitedSink, or a plain
+	// list of values separated by commas, tabs or white space
+	public static double[] readReference(String path, int num_ang) throws IOException {
+		double[] ref;
+		if (path.toLowerCase().endsWith(".bin")){
+			ref = readBinary(path);
+		}else{
+			ref = readText(path);
+		}
+		if (ref.length != num_ang)
+			throw new IOException("Reference has " + ref.length + " angles, expected " + num_ang);
+		return ref;
+	}
+
+	private static double[] readBinary(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try{
+			if (in.readInt() != BinarySink.MAGIC || in.readInt() != BinarySink.VERSION)
+				throw new IOException("Not a profile file: " + path);
+			int n = in.readInt();
+			in.readUTF();
+			in.readUTF();
+			in.readFloat();
+			in.readFloat();
+			double[] ref = new double[n];
+			for(int i=0; i<n; i++){
+				ref[i] = in.readFloat();
+			}
+			return ref;
+		}catch(EOFException e){
+			throw new IOException("No profile in " + path);
+		}finally{
+			in.close();
+		}
+	}
+
+	private static double[] readText(String path) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try{
+			String line = in.readLine();
+			if (line != null && line.startsWith("Image")){
+				// Header of DelimitedSink: the angles are the last columns of the first row,
+				// after the names (which may hold the separator) and the center
+				String sep = line.indexOf('\t') >= 0 ? "\t" : ",";
+				int n = line.split(sep).length - 4;
+				line = in.readLine();
+				if (line == null) throw new IOException("No profile in " + path);
+				String[] cols = line.split(sep);
+				if (n < 0 || cols.length < n + 4) throw new IOException("Not a profile file: " + path);
+				return parse(cols, cols.length - n, n, path);
+			}
+
+			ArrayList<String> values = new ArrayList<String>();
+			for(; line != null; line = in.readLine()){
+				for(String v : line.trim().split("[,;\\s]+")){
+					if (v.length() > 0) values.add(v);
+				}
+			}
+			return parse(values.toArray(new String[0]), 0, values.size(), path);
+		}finally{
+			in.close();
+		}
+	}
+
+	private static double[] parse(String[] values, int from, int n, String path) throws IOException {
+		double[] res = new double[n];
+		for(int i=0; i<n; i++){
+			try{
+				res[i] = Double.parseDouble(values[from+i].trim());
+			}catch(NumberFormatException e){
+				throw new IOException("Not a number in " + path + ": " + values[from+i]);
+			}
+		}
+		return res;
+	}
+}
@@ -0,0 +1,583 @@
+import ij.*;
+import ij.process.*;
+import ij.gui.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import ij.measure.*;
+
+// Angle analysis without GUI (used by Angle_Analysis and AngleBatch)
+public class AngleAnalyzer {
+	public static final String[] CENTERING_MODES = {"No centering", "Maximum centering", "Source centering", "Correlation centering"};
+
+	// Settings
+	int m_num_ang = 360;				// number of angles
+	String m_ctr_mode = CENTERING_MODES[0];	// centering mode
+	double m_srcx = 0, m_srcy = 0;		// source coordinate
+	double[] m_reference;				// reference for correlation centering
+	int m_stat = RayProfiler.MAX;		// statistic along each ray
+	int m_threads = 1;					// threads for the angular sweep
+	RoiCenter m_center = new RoiCenter();	// center of each roi
+	boolean m_all_slices = false;		// sweep all slices/channels/frames
+	boolean m_resegment = false;		// re-segment the roi on each slice
+	double m_low = 0, m_high = 0;		// thresholds for re-segmentation
+	boolean m_polar = false;			// statistics from a polar image instead of single rays
+	boolean m_keep_polar = false;		// keep the polar images of a run
+	ArrayList<FloatProcessor> m_polar_images = new ArrayList<FloatProcessor>();
+	ArrayList<String> m_polar_names = new ArrayList<String>();
+	ForkJoinPool m_pool;
+	volatile CancelFlag m_cancel;		// flag of the next run (may be null)
+	volatile RunStats m_stats = RunStats.NONE;	// stats of the next run
+
+	// Minimum number of angles swept by one task
+	static final int MIN_CHUNK = 16;
+
+	public AngleAnalyzer(int num_ang){
+		setNumAngles(num_ang);
+	}
+
+	public void setNumAngles(int num_ang){
+		if (num_ang <= 0)
+			throw new IllegalArgumentException("Number of angles must be positive.");
+		m_num_ang = num_ang;
+	}
+
+	public int getNumAngles(){
+		return m_num_ang;
+	}
+
+	public void setCentering(String mode){
+		if (!Arrays.asList(CENTERING_MODES).contains(mode))
+			throw new IllegalArgumentException("Unknown centering mode: " + mode);
+		m_ctr_mode = mode;
+	}
+
+	public void setStatistic(String stat){
+		int idx = Arrays.asList(RayProfiler.STATISTICS).indexOf(stat);
+		if (idx < 0)
+			throw new IllegalArgumentException("Unknown statistic: " + stat);
+		m_stat = idx;
+	}
+
+	// Number of threads for the angular sweep (0: all processors)
+	public synchronized void setThreads(int threads){
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		if (threads != m_threads){
+			m_threads = threads;
+			shutdown();
+		}
+	}
+
+	private synchronized ForkJoinPool getPool(){
+		if (m_pool == null)
+			m_pool = new ForkJoinPool(m_threads);
+		return m_pool;
+	}
+
+	// Stop the threads of the sweep; a later run starts new ones
+	public synchronized void shutdown(){
+		if (m_pool != null){
+			m_pool.shutdown();
+			m_pool = null;
+		}
+	}
+
+	// Center mode, one of RoiCenter.MODES
+	public void setCenter(String mode){
+		m_center.setMode(mode);
+	}
+
+	// Center for the "User point" mode
+	public void setCenterPoint(double x, double y){
+		m_center.setPoint(x, y);
+	}
+
+	// Reference profile for correlation centering (null: first profile of each run)
+	public void setReference(double[] reference){
+		m_reference = reference;
+	}
+
+	// Analyze every slice of stacks; optionally re-trace each roi on every
+	// slice with the wand between the thresholds low and high
+	public void setStackMode(boolean all_slices, boolean resegment, double low, double high){
+		m_all_slices = all_slices;
+		m_resegment = resegment;
+		m_low = low;
+		m_high = high;
+	}
+
+	// Take the statistics from a polar image of each roi (angle x radius,
+	// unit radial steps) rather than from rays sampled like ProfilePlot;
+	// keep_images keeps the images for takePolarImages()
+	public synchronized void setPolar(boolean polar, boolean keep_images){
+		m_polar = polar;
+		m_keep_polar = polar && keep_images;
+		m_polar_images.clear();
+		m_polar_names.clear();
+	}
+
+	public void setSource(double x, double y){
+		m_srcx = x;
+		m_srcy = y;
+	}
+
+	// Flag checked between the angles and slices of the runs started after this
+	// call; a run keeps the flag it started with
+	public void setCancelFlag(CancelFlag flag){
+		m_cancel = flag;
+	}
+
+	// Stats recorded by the runs started after this call (null: none)
+	public void setRunStats(RunStats stats){
+		m_stats = stats != null ? stats : RunStats.NONE;
+	}
+
+	// Throws CancellationException if the run of flag was canceled
+	private static void checkCanceled(CancelFlag flag){
+		if (flag != null) flag.check();
+	}
+
+	// Sweep angles from..to-1 of rays into prof_arry
+	private void sweep(RayProfiler profiler, PolygonIndex index, RayTemplates rays, double[] com, double[] prof_arry, int from, int to, CancelFlag flag, RunStats stats){
+		double[] values = new double[RayProfiler.STATISTICS.length];
+		boolean counting = stats.isActive();
+		long edges = 0, samples = 0;
+		for(int i=from; i<to; i++){
+			checkCanceled(flag);
+			double ang = rays.getAngle(i);
+			double cos = rays.getCos(i);
+			double sin = rays.getSin(i);
+			double len = index.getIntersectionLength(ang, cos, sin);
+			if (counting) edges += index.getEdgeCount(ang);
+
+			double vx = len * cos;
+			double vy = len * sin;
+			samples += profiler.sample(com[0], com[1], com[0]+vx, com[1]+vy, values);
+			prof_arry[i] = values[m_stat];
+		}
+		if (counting){
+			stats.count(RunStats.RAYS, to - from);
+			stats.count(RunStats.EDGES, edges);
+			stats.count(RunStats.SAMPLES, samples);
+		}
+	}
+
+	// Splits the angle range until chunks are small enough
+	private class SweepTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		RayProfiler profiler;
+		PolygonIndex index;
+		RayTemplates rays;
+		double[] com, prof_arry;
+		int from, to, chunk;
+		CancelFlag flag;
+		RunStats stats;
+
+		SweepTask(RayProfiler profiler, PolygonIndex index, RayTemplates rays, double[] com, double[] prof_arry, int from, int to, int chunk, CancelFlag flag, RunStats stats){
+			this.profiler = profiler;
+			this.index = index;
+			this.rays = rays;
+			this.com = com;
+			this.prof_arry = prof_arry;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.flag = flag;
+			this.stats = stats;
+		}
+
+		protected void compute(){
+			if (to - from <= chunk){
+				sweep(profiler, index, rays, com, prof_arry, from, to, flag, stats);
+			}else{
+				int mid = (from + to) >>> 1;
+				invokeAll(new SweepTask(profiler, index, rays, com, prof_arry, from, mid, chunk, flag, stats),
+						new SweepTask(profiler, index, rays, com, prof_arry, mid, to, chunk, flag, stats));
+			}
+		}
+	}
+
+	// Fills rows from..to-1 of a polar image, splitting the range until chunks
+	// are small enough; the result is the number of points sampled
+	private class UnwrapTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		RayProfiler profiler;
+		RayTemplates rays;
+		double[] com, lengths;
+		int radius;
+		float[] pixels;
+		int from, to, chunk;
+		CancelFlag flag;
+
+		UnwrapTask(RayProfiler profiler, RayTemplates rays, double[] com, double[] lengths, int radius, float[] pixels, int from, int to, int chunk, CancelFlag flag){
+			this.profiler = profiler;
+			this.rays = rays;
+			this.com = com;
+			this.lengths = lengths;
+			this.radius = radius;
+			this.pixels = pixels;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.flag = flag;
+		}
+
+		protected Integer compute(){
+			checkCanceled(flag);
+			if (to - from <= chunk)
+				return profiler.unwrap(com[0], com[1], rays, lengths, radius, from, to, pixels);
+			int mid = (from + to) >>> 1;
+			UnwrapTask left = new UnwrapTask(profiler, rays, com, lengths, radius, pixels, from, mid, chunk, flag);
+			left.fork();
+			int n = new UnwrapTask(profiler, rays, com, lengths, radius, pixels, mid, to, chunk, flag).compute();
+			return n + left.join();
+		}
+	}
+
+	// Statistic of the profile along each angle from the center of roi
+	public double[] getProfile(RayProfiler profiler, Roi roi, double[] com){
+		return getProfile(profiler, roi, com, null);
+	}
+
+	// Same as above; in polar mode the polar image is stored into polar_out[0] if not null
+	public double[] getProfile(RayProfiler profiler, Roi roi, double[] com, FloatProcessor[] polar_out){
+		return getProfile(profiler, roi, com, polar_out, m_cancel, m_stats);
+	}
+
+	private double[] getProfile(RayProfiler profiler, Roi roi, double[] com, FloatProcessor[] polar_out, CancelFlag flag, RunStats stats){
+		if (m_polar){
+			FloatProcessor polar = getPolarImage(profiler, roi, com, flag, stats);
+			if (polar_out != null) polar_out[0] = polar;
+			return reduce(polar, m_stat);
+		}
+		int N = m_num_ang;
+		double[] prof_arry = new double[N];
+		PolygonIndex index = new PolygonIndex(roi.getFloatPolygon(), com[0], com[1]);
+		RayTemplates rays = RayTemplates.get(N);
+		int threads;
+		synchronized(this){
+			threads = m_threads;
+		}
+		if (threads <= 1 || N <= MIN_CHUNK){
+			sweep(profiler, index, rays, com, prof_arry, 0, N, flag, stats);
+		}else{
+			int chunk = Math.max(MIN_CHUNK, N/(threads*4));
+			getPool().invoke(new SweepTask(profiler, index, rays, com, prof_arry, 0, N, chunk, flag, stats));
+		}
+		return prof_arry;
+	}
+
+	// Polar image of roi around com: column i is the ray at angle 2*PI*i/N and
+	// row r the point at distance r, up to the farthest outline crossing of the
+	// ray (NaN beyond). Rows are sampled in parallel chunks
+	public FloatProcessor getPolarImage(RayProfiler profiler, Roi roi, double[] com){
+		return getPolarImage(profiler, roi, com, m_cancel, m_stats);
+	}
+
+	private FloatProcessor getPolarImage(RayProfiler profiler, Roi roi, double[] com, CancelFlag flag, RunStats stats){
+		int N = m_num_ang;
+		RayTemplates rays = RayTemplates.get(N);
+		PolygonIndex index = new PolygonIndex(roi.getFloatPolygon(), com[0], com[1]);
+		double[] lengths = new double[N];
+		double maxlen = 0;
+		long edges = 0;
+		boolean counting = stats.isActive();
+		for(int i=0; i<N; i++){
+			lengths[i] = index.getIntersectionLength(rays.getAngle(i), rays.getCos(i), rays.getSin(i));
+			if (lengths[i] > maxlen) maxlen = lengths[i];
+			if (counting) edges += index.getEdgeCount(rays.getAngle(i));
+		}
+		checkCanceled(flag);
+		int radius = (int)Math.floor(maxlen);
+		float[] pixels = new float[N*(radius + 1)];
+		int threads;
+		synchronized(this){
+			threads = m_threads;
+		}
+		int samples;
+		if (threads <= 1 || radius < MIN_CHUNK){
+			samples = profiler.unwrap(com[0], com[1], rays, lengths, radius, pixels);
+		}else{
+			int chunk = Math.max(MIN_CHUNK, (radius + 1)/(threads*4));
+			samples = getPool().invoke(new UnwrapTask(profiler, rays, com, lengths, radius, pixels, 0, radius + 1, chunk, flag));
+		}
+		if (counting){
+			stats.count(RunStats.RAYS, N);
+			stats.count(RunStats.EDGES, edges);
+			stats.count(RunStats.SAMPLES, samples);
+		}
+		return new FloatProcessor(N, radius + 1, pixels);
+	}
+
+	// Statistic (RayProfiler.MAX..RADIUS_OF_MAX) of each column of a polar image
+	public static double[] reduce(FloatProcessor polar, int stat){
+		return reduceAll(polar)[stat];
+	}
+
+	// All statistics of each column of a polar image, indexed by RayProfiler.MAX..RADIUS_OF_MAX,
+	// accumulated row by row in one pass; NaN pixels are skipped
+	public static double[][] reduceAll(FloatProcessor polar){
+		int N = polar.getWidth(), h = polar.getHeight();
+		float[] pixels = (float[])polar.getPixels();
+		double[] max = new double[N], sum = new double[N];
+		int[] count = new int[N], rmax = new int[N];
+		Arrays.fill(max, -Double.MAX_VALUE);
+		for(int r=0; r<h; r++){
+			int row = r*N;
+			for(int i=0; i<N; i++){
+				float v = pixels[row + i];
+				if (Float.isNaN(v)) continue;
+				if (v > max[i]){
+					max[i] = v;
+					rmax[i] = r;
+				}
+				sum[i] += v;
+				count[i]++;
+			}
+		}
+		double[][] stats = new double[RayProfiler.STATISTICS.length][N];
+		for(int i=0; i<N; i++){
+			stats[RayProfiler.MAX][i] = max[i];
+			stats[RayProfiler.MEAN][i] = count[i] > 0 ? sum[i]/count[i] : Double.NaN;
+			stats[RayProfiler.INTEGRAL][i] = sum[i];
+			stats[RayProfiler.RADIUS_OF_MAX][i] = rmax[i];
+		}
+		return stats;
+	}
+
+	private synchronized void keepPolarImage(FloatProcessor polar, String name){
+		if (!m_keep_polar || polar == null) return;
+		m_polar_images.add(polar);
+		m_polar_names.add(name);
+	}
+
+	// Polar images kept since setPolar() as one stack (null if none), padded with
+	// NaN to the largest radius; x is the angle in degrees, y the radius in pixels
+	public synchronized ImagePlus takePolarImages(String title){
+		if (m_polar_images.isEmpty()) return null;
+		int N = m_polar_images.get(0).getWidth(), h = 0;
+		for(FloatProcessor fp : m_polar_images){
+			h = Math.max(h, fp.getHeight());
+		}
+		ImageStack stack = new ImageStack(N, h);
+		for(int k=0; k<m_polar_images.size(); k++){
+			FloatProcessor fp = m_polar_images.get(k);
+			float[] pixels = new float[N*h];
+			Arrays.fill(pixels, Float.NaN);
+			System.arraycopy((float[])fp.getPixels(), 0, pixels, 0, N*fp.getHeight());
+			stack.addSlice(m_polar_names.get(k), new FloatProcessor(N, h, pixels));
+		}
+		m_polar_images.clear();
+		m_polar_names.clear();
+		ImagePlus imp = new ImagePlus(title, stack);
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 360.0/N;
+		cal.setXUnit("degree");
+		cal.setYUnit("pixel");
+		imp.resetDisplayRange();
+		return imp;
+	}
+
+	// Rotate the profile according to the centering mode
+	public double[] center(double[] prof_arry, double[] com){
+		AngleProfile prof = new AngleProfile(prof_arry);
+		if (m_ctr_mode.equals("No centering")){
+			return prof_arry;
+		}else if(m_ctr_mode.equals("Maximum centering") || m_ctr_mode.equals("Correlation centering")){
+			// Correlation centering is refined by the sink (see wrapSink)
+			prof.centerAt(prof.indexOfMax());
+		}else if(m_ctr_mode.equals("Source centering")){
+			// Closest angle to the direction of the source
+			prof.centerAt(AngleProfile.nearestIndex(m_srcx - com[0], m_srcy - com[1], prof.size()));
+		}
+		return prof.toArray();
+	}
+
+	// Sink which aligns the profiles by cross-correlation if needed
+	public ProfileSink wrapSink(ProfileSink sink){
+		if (m_ctr_mode.equals("Correlation centering"))
+			return new AlignSink(sink, m_reference);
+		return sink;
+	}
+
+	// Run the whole analysis for one roi
+	public double[] analyze(RayProfiler profiler, Roi roi){
+		return analyze(profiler, roi, null);
+	}
+
+	// Same as above; the center of the rays is stored into com_out if not null
+	public double[] analyze(RayProfiler profiler, Roi roi, double[] com_out){
+		return analyze(profiler, roi, com_out, null, m_cancel, m_stats);
+	}
+
+	// Same as above; in polar mode the polar image is stored into polar_out[0] if not null
+	private double[] analyze(RayProfiler profiler, Roi roi, double[] com_out, FloatProcessor[] polar_out, CancelFlag flag, RunStats stats){
+		long t = stats.begin();
+		double[] com = m_center.getCenter(roi, profiler);
+		stats.end("Roi center", t);
+		if (com_out != null){
+			com_out[0] = com[0];
+			com_out[1] = com[1];
+		}
+		t = stats.begin();
+		double[] prof_arry = getProfile(profiler, roi, com, polar_out, flag, stats);
+		stats.end(m_polar ? "Polar unwrap" : "Angular sweep", t);
+		t = stats.begin();
+		prof_arry = center(prof_arry, com);
+		stats.end("Centering", t);
+		return prof_arry;
+	}
+
+	// Run the whole analysis for one roi on the current slice of imp
+	public double[] analyze(ImagePlus imp, Roi roi){
+		return analyze(new RayProfiler(imp), roi);
+	}
+
+	// Profiles of several rois on the same image.
+	// The rois share the read-only snapshot of profiler and are analyzed concurrently;
+	// profiles are passed to the sink in roi order.
+	public void analyze(final RayProfiler profiler, Roi[] rois, String image, ProfileSink sink) throws IOException {
+		final CancelFlag flag = m_cancel;
+		final RunStats stats = m_stats;
+		int n = rois.length;
+		final double[][] coms = new double[n][2];
+		final FloatProcessor[][] polars = new FloatProcessor[n][1];
+		ArrayList<ForkJoinTask<double[]>> tasks = new ArrayList<ForkJoinTask<double[]>>();
+		int threads;
+		synchronized(this){
+			threads = m_threads;
+		}
+		if (threads > 1){
+			for(int i=0; i<n; i++){
+				final Roi roi = rois[i];
+				final double[] com = coms[i];
+				final FloatProcessor[] polar = polars[i];
+				tasks.add(getPool().submit(new Callable<double[]>() {
+					public double[] call(){
+						return analyze(profiler, roi, com, polar, flag, stats);
+					}
+				}));
+			}
+		}
+
+		sink.begin(m_num_ang);
+		try{
+			for(int i=0; i<n; i++){
+				checkCanceled(flag);
+				double[] prof_arry = threads > 1 ? tasks.get(i).join() : analyze(profiler, rois[i], coms[i], polars[i], flag, stats);
+				String name = rois[i].getName() != null ? rois[i].getName() : String.valueOf(i+1);
+				sink.add(image, name, coms[i][0], coms[i][1], prof_arry);
+				keepPolarImage(polars[i][0], name);
+				polars[i][0] = null;
+				if (n > 1) IJ.showProgress(i+1, n);
+			}
+		}finally{
+			// Rois not started yet are dropped on cancel or error
+			for(ForkJoinTask<double[]> task : tasks){
+				task.cancel(true);
+			}
+			sink.close();
+		}
+	}
+
+	// Profiles of the rois on imp, on every slice if the stack mode is set
+	public void analyze(ImagePlus imp, Roi[] rois, ProfileSink sink) throws IOException {
+		if (m_all_slices && imp.getStackSize() > 1)
+			analyzeStack(imp, rois, sink);
+		else
+			analyze(new RayProfiler(imp), rois, imp.getTitle(), sink);
+	}
+
+	// Wand outline around the center of roi (roi itself if nothing is found)
+	private Roi resegment(ImageProcessor ip, Roi roi, double[] com){
+		Wand wand = new Wand(ip);
+		wand.autoOutline((int)com[0], (int)com[1], m_low, m_high);
+		if (wand.npoints == 0) return roi;
+		Roi seg = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.TRACED_ROI);
+		seg.setName(roi.getName());
+		return seg;
+	}
+
+	// Profiles of all rois on one stack slice (1-based)
+	private double[][] analyzeSlice(ImageStack stack, int n, float[] ctable, boolean interpolate, Roi[] rois, double[][] coms, FloatProcessor[][] polars, CancelFlag flag, RunStats stats){
+		ImageProcessor ip = stack.getProcessor(n);
+		RayProfiler profiler = new RayProfiler(ip, ctable, interpolate);
+		double[][] profiles = new double[rois.length][];
+		for(int i=0; i<rois.length; i++){
+			checkCanceled(flag);
+			Roi roi = rois[i];
+			if (m_resegment){
+				long t = stats.begin();
+				roi = resegment(ip, roi, m_center.getCenter(roi, profiler));
+				stats.end("Re-segmentation", t);
+			}
+			profiles[i] = analyze(profiler, roi, coms[i], polars[i], flag, stats);
+		}
+		return profiles;
+	}
+
+	// Profiles of the rois on every slice/channel/frame.
+	// Slices are read directly from the stack and analyzed in parallel, up to
+	// two per thread ahead of the one being written; profiles are passed to
+	// the sink in stack order.
+	public void analyzeStack(ImagePlus imp, final Roi[] rois, ProfileSink sink) throws IOException {
+		final CancelFlag flag = m_cancel;
+		final RunStats stats = m_stats;
+		final ImageStack stack = imp.getStack();
+		final float[] ctable = imp.getCalibration().getCTable();
+		final boolean interpolate = PlotWindow.interpolate;
+		int nslices = stack.getSize();
+		final double[][][] coms = new double[nslices][][];
+		final FloatProcessor[][][] polars = new FloatProcessor[nslices][][];
+
+		int threads;
+		synchronized(this){
+			threads = m_threads;
+		}
+		int window = threads > 1 ? 2*threads : 0;
+		int next = 1;						// next slice to submit
+		ArrayDeque<ForkJoinTask<double[][]>> tasks = new ArrayDeque<ForkJoinTask<double[][]>>();
+
+		sink.begin(m_num_ang);
+		try{
+			for(int n=1; n<=nslices; n++){
+				checkCanceled(flag);
+				for(; window > 0 && next<=nslices && next < n + window; next++){
+					final int slice = next;
+					coms[slice-1] = new double[rois.length][2];
+					polars[slice-1] = new FloatProcessor[rois.length][1];
+					tasks.add(getPool().submit(new Callable<double[][]>() {
+						public double[][] call(){
+							return analyzeSlice(stack, slice, ctable, interpolate, rois, coms[slice-1], polars[slice-1], flag, stats);
+						}
+					}));
+				}
+				double[][] profiles;
+				if (tasks.isEmpty()){
+					coms[n-1] = new double[rois.length][2];
+					polars[n-1] = new FloatProcessor[rois.length][1];
+					profiles = analyzeSlice(stack, n, ctable, interpolate, rois, coms[n-1], polars[n-1], flag, stats);
+				}else{
+					profiles = tasks.remove().join();
+				}
+				int[] pos = imp.convertIndexToPosition(n);
+				for(int i=0; i<rois.length; i++){
+					String name = rois[i].getName() != null ? rois[i].getName() : String.valueOf(i+1);
+					name += " c" + pos[0] + " z" + pos[1] + " t" + pos[2];
+					sink.add(imp.getTitle(), name, coms[n-1][i][0], coms[n-1][i][1], profiles[i]);
+					keepPolarImage(polars[n-1][i][0], name);
+				}
+				coms[n-1] = null;
+				polars[n-1] = null;
+				IJ.showProgress(n, nslices);
+			}
+		}finally{
+			// Slices still queued are dropped on cancel or error
+			for(ForkJoinTask<double[][]> task : tasks){
+				task.cancel(true);
+			}
+			sink.close();
+		}
+	}
+}
@@ -0,0 +1,177 @@
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.measure.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// Headless angle analysis over many images.
+// Rois of image "name.tif" are read from "name.roi" or "name.zip" (RoiSet) next to it.
+public class AngleBatch {
+	public static final String[] IMAGE_EXTS = {".tif", ".tiff", ".png", ".jpg", ".gif", ".bmp"};
+
+	AngleAnalyzer m_analyzer;
+	int m_threads;
+
+	public AngleBatch(AngleAnalyzer analyzer, int threads){
+		m_analyzer = analyzer;
+		m_threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+	}
+
+	// Images in the directory which have a roi file
+	public static ArrayList<File> listImages(File dir){
+		ArrayList<File> files = new ArrayList<File>();
+		File[] list = dir.listFiles();
+		if (list == null) return files;
+		Arrays.sort(list);
+		for(File f : list){
+			String name = f.getName().toLowerCase();
+			if (!f.isFile() || name.endsWith(".roi")) continue;
+			for(String ext : IMAGE_EXTS){
+				if (name.endsWith(ext) && getRoiFile(f) != null){
+					files.add(f);
+					break;
+				}
+			}
+		}
+		return files;
+	}
+
+	// Roi file belonging to the image (null if none)
+	public static File getRoiFile(File image){
+		String name = image.getName();
+		int dot = name.lastIndexOf('.');
+		String base = dot > 0 ? name.substring(0, dot) : name;
+		File roi = new File(image.getParentFile(), base + ".roi");
+		if (roi.isFile()) return roi;
+		File zip = new File(image.getParentFile(), base + ".zip");
+		if (zip.isFile()) return zip;
+		return null;
+	}
+
+	// Read rois from .roi or RoiSet .zip file
+	public static Roi[] loadRois(File file) throws IOException {
+		ArrayList<Roi> rois = new ArrayList<Roi>();
+		if (file.getName().toLowerCase().endsWith(".zip")){
+			ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try{
+				ZipEntry entry;
+				byte[] buf = new byte[8192];
+				while((entry = in.getNextEntry()) != null){
+					String name = entry.getName();
+					if (!name.endsWith(".roi")) continue;
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					int len;
+					while((len = in.read(buf)) > 0){
+						out.write(buf, 0, len);
+					}
+					Roi roi = new RoiDecoder(out.toByteArray(), name).getRoi();
+					if (roi != null){
+						roi.setName(name.substring(0, name.length() - 4));
+						rois.add(roi);
+					}
+				}
+			}finally{
+				in.close();
+			}
+		}else{
+			Roi roi = new RoiDecoder(file.getPath()).getRoi();
+			if (roi != null) rois.add(roi);
+		}
+		return rois.toArray(new Roi[rois.size()]);
+	}
+
+	// Profiles of all rois in one image
+	private static class ImageResult implements ProfileSink {
+		ArrayList<String> labels = new ArrayList<String>();
+		ArrayList<double[]> coms = new ArrayList<double[]>();
+		ArrayList<double[]> profiles = new ArrayList<double[]>();
+
+		public void begin(int num_ang){
+			// Do nothing
+		}
+
+		public void add(String image, String roi, double cx, double cy, double[] profile){
+			labels.add(roi);
+			coms.add(new double[]{cx, cy});
+			profiles.add(profile);
+		}
+
+		public void close(){
+			// Do nothing
+		}
+	}
+
+	private ImageResult analyzeImage(File file) throws IOException {
+		ImagePlus imp = IJ.openImage(file.getPath());
+		if (imp == null) throw new IOException("Cannot open " + file);
+		File roi_file = getRoiFile(file);
+		if (roi_file == null) throw new IOException("No roi file for " + file);
+
+		ArrayList<Roi> areas = new ArrayList<Roi>();
+		Roi[] rois = loadRois(roi_file);
+		for(int i=0; i<rois.length; i++){
+			if (!rois[i].isArea()) continue;
+			if (rois[i].getName() == null) rois[i].setName(String.valueOf(i+1));
+			areas.add(rois[i]);
+		}
+
+		ImageResult res = new ImageResult();
+		m_analyzer.analyze(imp, areas.toArray(new Roi[areas.size()]), res);
+		imp.close();
+		return res;
+	}
+
+	// Process images on the worker pool and collect the profiles into a table
+	public ResultsTable run(java.util.List<File> files){
+		TableSink sink = new TableSink(null);
+		try{
+			run(files, sink);
+		}catch(IOException e){
+			// Never thrown by TableSink
+		}
+		return sink.getTable();
+	}
+
+	// Process images on the worker pool.
+	// Profiles are passed to the sink in file order as soon as each image is done.
+	public void run(java.util.List<File> files, ProfileSink sink) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(m_threads);
+		ArrayList<Future<ImageResult>> futures = new ArrayList<Future<ImageResult>>();
+		for(final File f : files){
+			futures.add(pool.submit(new Callable<ImageResult>() {
+				public ImageResult call() throws Exception {
+					return analyzeImage(f);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		sink.begin(m_analyzer.getNumAngles());
+		try{
+			for(int i=0; i<files.size(); i++){
+				ImageResult res;
+				try{
+					res = futures.get(i).get();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					break;
+				}catch(ExecutionException e){
+					IJ.log(files.get(i).getName() + ": " + e.getCause().getMessage());
+					continue;
+				}
+				String name = files.get(i).getName();
+				for(int j=0; j<res.profiles.size(); j++){
+					double[] com = res.coms.get(j);
+					sink.add(name, res.labels.get(j), com[0], com[1], res.profiles.get(j));
+				}
+				IJ.showProgress(i+1, files.size());
+			}
+		}finally{
+			pool.shutdownNow();
+			sink.close();
+		}
+	}
+}
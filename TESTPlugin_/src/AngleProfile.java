@@ -0,0 +1,109 @@
+// Angle profile backed by a primitive array.
+// Rotation only changes the start offset, the values are never moved.
+public class AngleProfile {
+	double[] m_values;
+	int m_offset;						// get(i) = m_values[(i + m_offset) % N]
+
+	public AngleProfile(double[] values){
+		m_values = values;
+	}
+
+	public int size(){
+		return m_values.length;
+	}
+
+	public double get(int i){
+		int k = i + m_offset;
+		return m_values[k < m_values.length ? k : k - m_values.length];
+	}
+
+	public int getOffset(){
+		return m_offset;
+	}
+
+	// Rotate so that get(i) returns the current get(i + shift)
+	public void rotate(int shift){
+		int n = m_values.length;
+		m_offset = (int)(((long)m_offset + shift) % n);
+		if (m_offset < 0) m_offset += n;
+	}
+
+	// Rotate so that the current value i comes to the middle (N - N/2)
+	public void centerAt(int i){
+		rotate(i + m_values.length/2);
+	}
+
+	// Index of the first maximum (in the current rotation)
+	public int indexOfMax(){
+		int n = m_values.length;
+		int i_max = 0;
+		double max = -Double.MAX_VALUE;
+		for(int i=0; i<n; i++){
+			double v = get(i);
+			if (v > max){
+				i_max = i;
+				max = v;
+			}
+		}
+		return i_max;
+	}
+
+	// Index of the angle 2*PI*i/N closest to the direction (vx,vy)
+	public static int nearestIndex(double vx, double vy, int N){
+		double ang = Math.atan2(vy, vx);
+		if (ang < 0) ang += 2*Math.PI;
+		int i = (int)Math.round(ang*N/(2*Math.PI));
+		return i >= N ? i - N : i;
+	}
+
+	// Shift s (for rotate) maximizing the circular cross-correlation with ref
+	public int alignmentShift(AngleProfile ref){
+		int n = m_values.length;
+		if (ref.size() != n)
+			throw new IllegalArgumentException("Profiles have different numbers of angles.");
+		double[] ar = new double[n], ai = new double[n];
+		double[] rr = new double[n], ri = new double[n];
+		double amean = 0, rmean = 0;
+		for(int i=0; i<n; i++){
+			amean += get(i);
+			rmean += ref.get(i);
+		}
+		amean /= n;
+		rmean /= n;
+		for(int i=0; i<n; i++){
+			ar[i] = get(i) - amean;
+			rr[i] = ref.get(i) - rmean;
+		}
+
+		// c[s] = sum_j a[j+s]*r[j] = IFFT(FFT(a) * conj(FFT(r)))
+		FFT.transform(ar, ai, false);
+		FFT.transform(rr, ri, false);
+		for(int k=0; k<n; k++){
+			double t = ar[k]*rr[k] + ai[k]*ri[k];
+			ai[k] = ai[k]*rr[k] - ar[k]*ri[k];
+			ar[k] = t;
+		}
+		FFT.transform(ar, ai, true);
+
+		int s_max = 0;
+		for(int s=1; s<n; s++){
+			if (ar[s] > ar[s_max]) s_max = s;
+		}
+		return s_max;
+	}
+
+	// Rotate to the best match with ref
+	public void alignTo(AngleProfile ref){
+		rotate(alignmentShift(ref));
+	}
+
+	// Values in the current rotation
+	public double[] toArray(){
+		int n = m_values.length;
+		double[] out = new double[n];
+		int k = n - m_offset;
+		System.arraycopy(m_values, m_offset, out, 0, k);
+		System.arraycopy(m_values, 0, out, k, m_offset);
+		return out;
+	}
+}
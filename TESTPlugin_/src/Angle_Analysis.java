@@ -3,106 +3,91 @@ import ij.process.*;
 import ij.gui.*;
 import java.awt.*;
 import ij.plugin.*;
+import ij.plugin.frame.*;
 import java.awt.event.*;
 import java.util.*;
+import java.io.*;
+import ij.measure.*;
+import ij.util.*;
+import ij.io.*;
 
 public class Angle_Analysis implements PlugIn, ActionListener, ItemListener, KeyListener{
 	// Member variables
 	Button m_bt_run;					// run button
+	Button m_bt_cancel;					// cancel button
 	Button m_bt_set, m_bt_reset;		// set/reset button
 	TextField m_txt_low, m_txt_high;	// higher/lower thresholds
 	TextField m_txt_num_ang;			// number of angles
+	TextField m_txt_threads;			// number of threads
 	TextField m_txt_srcx, m_txt_srcy;	// Source coordinate
 	Choice m_cho_ctrg;					// Centering mode
+	Choice m_cho_stat;					// Statistic along each angle
+	Choice m_cho_sampling;				// Rays or polar unwrap
+	Choice m_cho_center;				// Center mode
+	Choice m_cho_out;					// Output type
+	Choice m_cho_stats;					// Run statistics output
+	Checkbox m_chk_manager;				// Analyze all rois in RoiManager
+	Checkbox m_chk_stack, m_chk_reseg;	// All slices / re-segment on each slice
+	TextField m_txt_ctrx, m_txt_ctry;	// User center coordinate
+	AngleAnalyzer m_analyzer;			// kept between runs for the center cache
+	BackgroundRunner m_runner;			// runs the analysis off the event thread
 	
-	private double length_2d(double x1, double y1, double x2, double y2){
-		return Math.sqrt((x1-x2)*(x1-x2) + (y1-y2)*(y1-y2));
-	}
-
-	private double linear_val(double x, double y, double cx, double cy, double angle){
-		return (y-cy)*Math.cos(angle) - (x-cx)*Math.sin(angle);
+	// Settings of one run, read from the window on the event thread so that
+	// the analysis never touches the widgets
+	static class RunSettings {
+		final int low, high, num_ang, threads;
+		final String center, centering, statistic, sampling, output, stats_out;
+		final double ctr_x, ctr_y, src_x, src_y;
+		final boolean stack, reseg;
+		final String path;					// output file (null for the log window and results table)
+
+		RunSettings(Angle_Analysis win, int low, int high, int num_ang, String path){
+			this.low = low;
+			this.high = high;
+			this.num_ang = num_ang;
+			this.path = path;
+			threads = Integer.parseInt(win.m_txt_threads.getText());
+			center = win.m_cho_center.getSelectedItem();
+			centering = win.m_cho_ctrg.getSelectedItem();
+			statistic = win.m_cho_stat.getSelectedItem();
+			sampling = win.m_cho_sampling.getSelectedItem();
+			output = win.m_cho_out.getSelectedItem();
+			stats_out = win.m_cho_stats.getSelectedItem();
+			boolean user = center.equals("User point");
+			ctr_x = user ? Double.parseDouble(win.m_txt_ctrx.getText()) : 0;
+			ctr_y = user ? Double.parseDouble(win.m_txt_ctry.getText()) : 0;
+			boolean source = centering.equals("Source centering");
+			src_x = source ? Double.parseDouble(win.m_txt_srcx.getText()) : 0;
+			src_y = source ? Double.parseDouble(win.m_txt_srcy.getText()) : 0;
+			stack = win.m_chk_stack.getState();
+			reseg = win.m_chk_reseg.getState();
+		}
 	}
 
-	private double getIntersectionLength(double cx, double cy, double angle, Roi r){
-		// Search through intersections
-		ArrayList<Integer> idx = new ArrayList<Integer>();
-		FloatPolygon pol = r.getFloatPolygon();
-		int n = pol.npoints;
-		for(int i=0; i<n-1; i++){
-			double v1 = linear_val(pol.xpoints[i], pol.ypoints[i], cx, cy, angle);
-			double v2 = linear_val(pol.xpoints[i+1], pol.ypoints[i+1], cx, cy, angle);
-			// same side if v1*v2>0, otherwise opposite
-			if(v1*v2 < 0){
-				idx.add(i);
+	// Rois to analyze: the area rois of the roi manager or the area selection
+	// (null after a message if there are none)
+	private Roi[] getRois(ImagePlus imp){
+		if (m_chk_manager.getState()){
+			RoiManager manager = RoiManager.getInstance();
+			if (manager == null || manager.getCount() == 0){
+				IJ.showMessage("No ROIs in ROI Manager. ");
+				return null;
 			}
-		}
-
-		// Finding desired direction and the farthest intersection
-		ArrayList<Double> ix = new ArrayList<Double>();
-		ArrayList<Double> iy = new ArrayList<Double>();
-		for(int i=0; i<idx.size(); i++){
-			double x1 = pol.xpoints[idx.get(i)];
-			double y1 = pol.ypoints[idx.get(i)];
-
-			double node_ang = Math.atan2(y1-cy, x1-cx);
-			// atan2 returns -PI to PI -> 0 to 2*PI;
-			if(node_ang < 0)
-				node_ang += Math.PI*2;
-
-			if(Math.abs(node_ang - angle) < Math.PI/2){
-				double x2 = pol.xpoints[idx.get(i) + 1];
-				double y2 = pol.ypoints[idx.get(i) + 1];
-
-				// Solving
-				// (x2-x1)(y-y1) = (y2-y1)(x-x1)
-				// (y-cy)cos(angle) = (x-cx)sin(angle)
-				double sin = Math.sin(angle);
-				double cos = Math.cos(angle);
-				double D = (y2-y1)*cos - (x2-x1)*sin;
-				double a = cx*sin - cy*cos;
-				double b = (y2-y1)*x1 - (x2-x1)*y1;
-
-				// Calculating intersec and pushing into array list
-				//IJ.log("ang=" + Math.atan2((b*sin - a*(y2-y1))/D-cy, (b*cos - a*(x2-x1))/D-cx));
-				ix.add((b*cos - a*(x2-x1))/D);
-				iy.add((b*sin - a*(y2-y1))/D);
-				//IJ.log("(" + (b*cos - a*(x2-x1))/D + ", " + (b*sin - a*(y2-y1))/D + ")");
+			ArrayList<Roi> areas = new ArrayList<Roi>();
+			for(Roi roi : manager.getRoisAsArray()){
+				if (roi.isArea()) areas.add(roi);
 			}
+			return areas.toArray(new Roi[areas.size()]);
 		}
-
-		// Finding farthest intersection
-		double maxlen = 0;
-		for(int i=0; i<ix.size(); i++){
-			double len = length_2d(ix.get(i), iy.get(i), cx, cy);
-			if(len>maxlen){
-				maxlen = len;
-			}
-		}
-		return maxlen;
-	}
-
-	private double[] getCenterOfMass(Roi roi){
-		// Calculate center of mass
-		Polygon poly = roi.getPolygon();
-		double sumx = 0, sumy = 0;
-		for(int i=0; i<poly.npoints; i++){
-			sumx = sumx + poly.xpoints[i];
-			sumy = sumy + poly.ypoints[i];
+		Roi roi = imp.getRoi();
+		if (null == roi || !roi.isArea()){
+			IJ.showMessage("No area selected. ");
+			return null;
 		}
-		double[] com = new double[2];
-		
-		com[0] = sumx/poly.npoints;
-		com[1] = sumy/poly.npoints;
-
-		return com;
+		return new Roi[]{roi};
 	}
 
-	private void angle_analysis(int threshold_low, int threshold_high, int N) {
-		ImagePlus imp = IJ.getImage();
-        if (null == imp) return;
-
-		ImageProcessor ip = imp.getProcessor();
-
+	private void angle_analysis(ImagePlus imp, Roi[] rois, RunSettings set, CancelFlag flag, RunStats stats) {
 		/*
 		// Find center of selection
 		Roi roi_sel = imp.getRoi();
@@ -120,97 +105,163 @@ public class Angle_Analysis implements PlugIn, ActionListener, ItemListener, Key
 		PolygonRoi roi = new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, Roi.FREELINE);
 		imp.setRoi(roi);
 		*/
-		
-		Roi roi = imp.getRoi();
 
-		// Calculate COM of Wand
-		double[] com = new double[2];
-		com = getCenterOfMass(roi);
-
-		ArrayList<Double> max_arry = new ArrayList<Double>();
-		for(int i=0; i<N; i++){
-			double ang = 2*i*Math.PI/N;
-			double len = getIntersectionLength(com[0], com[1], ang, roi);
-
-			double vx = len * Math.cos(ang);
-			double vy = len * Math.sin(ang);
-			Line line = new Line(com[0], com[1], com[0]+vx, com[1]+vy);
-			imp.setRoi(line);
-			ProfilePlot prof = new ProfilePlot(imp);
-			double max_prof = prof.getMax();
-			max_arry.add(max_prof);
+		if (m_analyzer == null)
+			m_analyzer = new AngleAnalyzer(set.num_ang);
+		AngleAnalyzer analyzer = m_analyzer;
+		analyzer.setNumAngles(set.num_ang);
+		analyzer.setCenter(set.center);
+		if (set.center.equals("User point")){
+			analyzer.setCenterPoint(set.ctr_x, set.ctr_y);
 		}
+		analyzer.setCentering(set.centering);
+		analyzer.setStatistic(set.statistic);
+		analyzer.setPolar(!set.sampling.equals("Rays"), set.sampling.equals("Polar unwrap with images"));
+		analyzer.setThreads(set.threads);
+		if (set.centering.equals("Source centering")){
+			analyzer.setSource(set.src_x, set.src_y);
+		}
+		ProfileSink sink = analyzer.wrapSink(createSink(set.output, set.path));
+		analyzer.setStackMode(set.stack, set.reseg, set.low, set.high);
+		analyzer.setCancelFlag(flag);
+		analyzer.setRunStats(stats);
+		try{
+			analyzer.analyze(imp, rois, sink);
+			ImagePlus polar = analyzer.takePolarImages("Polar " + imp.getShortTitle());
+			if (polar != null) polar.show();
+		}catch(IOException e){
+			IJ.error("Angle analysis", e.getMessage());
+		}finally{
+			analyzer.setCancelFlag(null);
+			analyzer.setRunStats(null);
+		}
+	}
 
-		// Centering
-		IJ.log("\\Clear");
-		String ctr_mode = m_cho_ctrg.getSelectedItem();
-		if (ctr_mode == "No centering"){
-			for(int i=0; i<N; i++){
-				IJ.log(String.valueOf(max_arry.get(i)));
-			}
-		}else if(ctr_mode == "Maximum centering"){
-			// Find max
-			int i_max = 0;
-			double max = 0;
-			for(int i=0; i<N; i++){
-				if(max_arry.get(i) > max){
-					i_max = i;
-					max = max_arry.get(i);
-				}
-			}
+	// Output file for the output type, asked on the event thread ("" for the
+	// log window and results table, null if canceled)
+	private String chooseOutput(String type){
+		if (type.equals("Log window") || type.equals("Results table")) return "";
+		String ext = type.equals("CSV file") ? ".csv" : type.equals("TSV file") ? ".tsv" : ".bin";
+		SaveDialog sd = new SaveDialog("Save profiles", "profiles", ext);
+		if (sd.getFileName() == null) return null;
+		return sd.getDirectory() + sd.getFileName();
+	}
 
-			// Centering at max
-			for(int i=0; i<N; i++){
-				int i_new = (i_max + i + N/2) % N;
-				IJ.log(String.valueOf(max_arry.get(i_new)));
-			}
-		}else if(ctr_mode == "Source centering"){
-			// Calculate relative angle vector
-			double vecx = Double.parseDouble(m_txt_srcx.getText()) - com[0];
-			double vecy = Double.parseDouble(m_txt_srcy.getText()) - com[1];
-			double len = Math.sqrt(vecx*vecx + vecy*vecy);
-			vecx /= len;
-			vecy /= len;
-			
-			// Find the closest angle
-			int i_ang = 0;
-			double min_len = 100000;
-			for(int i=0; i<N; i++){
-				double ang = 2*i*Math.PI/N;
-				double angx = Math.cos(ang);
-				double angy = Math.sin(ang);
-				double rel_len = length_2d(angx, angy, vecx, vecy);
-				if(rel_len < min_len){
-					i_ang = i;
-					min_len = rel_len;
-				}
+	// Sink for the output type, writing to path for the files
+	private ProfileSink createSink(String type, String path){
+		if (type.equals("Log window")){
+			return new LogSink();
+		}else if (type.equals("Results table")){
+			return new TableSink("Angle analysis");
+		}else if (type.equals("Binary file")){
+			return new BinarySink(path);
+		}
+		return new DelimitedSink(path, type.equals("CSV file") ? ',' : '\t');
+	}
+
+	// Headless batch analysis from macro options, e.g.
+	// run("Angle Analysis", "dir=[/data/run1] angles=360 center=[Area centroid] centering=[Maximum centering] statistic=Maximum threads=8 save=[/data/run1.csv]");
+	// "files=[a.tif;b.tif]" may be given instead of "dir".
+	// "threads" images are processed at once (0: all processors), each with "angle_threads" threads for the angles.
+	// The flag "stack" analyzes every slice, "resegment" re-traces the rois between "low" and "high".
+	// The flag "stats" shows the run statistics, "json=[path]" saves them.
+	// The flag "polar" takes the statistics from polar images of the rois.
+	// "reference=[path]" aligns to the first profile of a saved .csv, .tsv or .bin file
+	// (or a plain list of values) with "Correlation centering", instead of the first profile of the run.
+	private void batch_analysis(String options) {
+		int N = (int)Tools.parseDouble(Macro.getValue(options, "angles", "360"), 360);
+		int threads = (int)Tools.parseDouble(Macro.getValue(options, "threads", "0"), 0);
+		int angle_threads = (int)Tools.parseDouble(Macro.getValue(options, "angle_threads", "1"), 1);
+		String flags = " " + options + " ";
+		AngleAnalyzer analyzer;
+		try{
+			analyzer = new AngleAnalyzer(N);
+			analyzer.setCenter(Macro.getValue(options, "center", "Vertex average"));
+			analyzer.setCentering(Macro.getValue(options, "centering", "No centering"));
+			analyzer.setStatistic(Macro.getValue(options, "statistic", "Maximum"));
+			analyzer.setThreads(angle_threads);
+			analyzer.setPolar(flags.contains(" polar "), false);
+			analyzer.setStackMode(flags.contains(" stack "), flags.contains(" resegment "),
+					Tools.parseDouble(Macro.getValue(options, "low", "0"), 0),
+					Tools.parseDouble(Macro.getValue(options, "high", "0"), 0));
+		}catch(IllegalArgumentException e){
+			IJ.error("Angle analysis", e.getMessage());
+			return;
+		}
+		analyzer.setCenterPoint(Tools.parseDouble(Macro.getValue(options, "center_x", "0"), 0),
+				Tools.parseDouble(Macro.getValue(options, "center_y", "0"), 0));
+		analyzer.setSource(Tools.parseDouble(Macro.getValue(options, "source_x", "0"), 0),
+				Tools.parseDouble(Macro.getValue(options, "source_y", "0"), 0));
+		String reference = Macro.getValue(options, "reference", null);
+		if (reference != null){
+			try{
+				analyzer.setReference(AlignSink.readReference(reference, N));
+			}catch(IOException e){
+				IJ.error("Angle analysis", e.getMessage());
+				return;
 			}
+		}
 
-			// Centering at relative direction
-			for(int i=0; i<N; i++){
-				int i_new = (i_ang + i + N/2) % N;
-				IJ.log(String.valueOf(max_arry.get(i_new)));
+		java.util.List<File> files;
+		String dir = Macro.getValue(options, "dir", null);
+		if (dir != null){
+			files = AngleBatch.listImages(new File(dir));
+		}else{
+			files = new ArrayList<File>();
+			for(String f : Macro.getValue(options, "files", "").split(";")){
+				if (f.trim().length() > 0) files.add(new File(f.trim()));
 			}
 		}
+		if (files.isEmpty()){
+			IJ.error("Angle analysis", "No images with roi files found.");
+			return;
+		}
 
-		// Show polygon
-		imp.setRoi(roi);
+		// Output file by extension (.csv, .tsv or .bin), Results table otherwise
+		String save = Macro.getValue(options, "save", null);
+		ProfileSink sink = save != null ? ProfileSink.forPath(save) : new TableSink("Angle analysis");
+
+		// Run statistics: "stats" shows the table, "json=[path]" writes them
+		String json = Macro.getValue(options, "json", null);
+		RunStats stats = RunStats.start("Angle batch", flags.contains(" stats ") || json != null);
+		analyzer.setRunStats(stats);
+		try{
+			new AngleBatch(analyzer, threads).run(files, analyzer.wrapSink(sink));
+		}catch(IOException e){
+			IJ.error("Angle analysis", e.getMessage());
+		}finally{
+			analyzer.shutdown();
+			if (stats.isActive()){
+				stats.stop();
+				if (flags.contains(" stats ")) stats.show();
+				try{
+					if (json != null) stats.writeJson(json);
+				}catch(IOException e){
+					IJ.error("Angle analysis", e.getMessage());
+				}
+			}
+		}
 	}
 
 	// Buttons pressed
     public void actionPerformed(ActionEvent e){
+    	if (e.getSource() == m_bt_cancel){
+    		m_runner.cancel();
+    		return;
+    	}
+
     	// Thresholds
-		int low = Integer.parseInt(m_txt_low.getText());
-		int high = Integer.parseInt(m_txt_high.getText());
+		final int low = Integer.parseInt(m_txt_low.getText());
+		final int high = Integer.parseInt(m_txt_high.getText());
 		if (low > high){
 			IJ.showMessage("Lower threshold must be lower than Higher threshold.");
 			return;
 		}
 		
 		// Number of angles
-		int num_ang = Integer.parseInt(m_txt_num_ang.getText());
-		if (num_ang < 0 || num_ang > 360){
-			IJ.showMessage("Number of angles must be 0-360.");
+		final int num_ang = Integer.parseInt(m_txt_num_ang.getText());
+		if (num_ang <= 0){
+			IJ.showMessage("Number of angles must be positive.");
 			return;
 		}
 				
@@ -223,7 +274,34 @@ public class Angle_Analysis implements PlugIn, ActionListener, ItemListener, Key
     	if (src==null){
 			return;
     	}else if (src.equals(m_bt_run)){
-    		angle_analysis(low, high, num_ang);
+    		if (m_runner.isRunning()){
+    			IJ.showStatus("Angle analysis: already running");
+    			return;
+    		}
+
+    		// Everything the run needs is read here, on the event thread
+    		final ImagePlus run_imp = imp;
+    		final Roi[] rois = getRois(imp);
+    		if (rois == null) return;
+    		String path = chooseOutput(m_cho_out.getSelectedItem());
+    		if (path == null) return;
+    		final RunSettings set;
+    		try{
+    			set = new RunSettings(this, low, high, num_ang, path.length() > 0 ? path : null);
+    		}catch(NumberFormatException ex){
+    			IJ.showMessage("Invalid number: " + ex.getMessage());
+    			return;
+    		}
+    		m_runner.submit("Angle analysis", new BackgroundRunner.Task() {
+    			public void run(CancelFlag flag){
+    				RunStats stats = RunStats.start("Angle analysis", !set.stats_out.equals("None"));
+    				try{
+    					angle_analysis(run_imp, rois, set, flag, stats);
+    				}finally{
+    					stats.finish(set.stats_out);
+    				}
+    			}
+    		});
     	}else if (src.equals(m_bt_set)){
 			ip.setThreshold(low, high, ImageProcessor.RED_LUT);
 			imp.updateAndDraw();    		
@@ -236,7 +314,11 @@ public class Angle_Analysis implements PlugIn, ActionListener, ItemListener, Key
     // Choice changed
     public void itemStateChanged(ItemEvent e) {
 		Choice cho = (Choice)e.getItemSelectable();
-		if (cho.getSelectedItem() == "Source centering"){
+		if (cho == m_cho_center){
+			boolean user = cho.getSelectedItem().equals("User point");
+			m_txt_ctrx.setEnabled(user);
+			m_txt_ctry.setEnabled(user);
+		}else if (cho.getSelectedItem() == "Source centering"){
 			m_txt_srcx.setEnabled(true);
 			m_txt_srcy.setEnabled(true);
 		}else{
@@ -284,25 +366,92 @@ public class Angle_Analysis implements PlugIn, ActionListener, ItemListener, Key
     }
     
     public void run(String arg) {	
-		
+		// Batch mode if images are given by macro options or plugin argument
+		String options = Macro.getOptions();
+		if (options == null) options = arg;
+		if (options != null && (options.contains("dir=") || options.contains("files="))){
+			batch_analysis(options);
+			return;
+		}
+
         Panel p = new Panel();
     	Frame frm = new Frame(new String("Angle analysis"));
-    	frm.setSize(new Dimension(300,220));
+    	frm.setSize(new Dimension(300,475));
     	frm.setLayout(new GridLayout(0, 1));
         frm.addWindowListener(new WindowAdapter() {
         	public void windowClosing(WindowEvent e) {
+        		if (m_analyzer != null) m_analyzer.shutdown();
         		System.exit(0);
         	}
         });
         
+        // Center modes
+        m_cho_center = new Choice();
+        for(String mode : RoiCenter.MODES)
+        	m_cho_center.add(mode);
+        m_cho_center.select(RoiCenter.VERTEX);
+        m_cho_center.addItemListener(this);
+        addLabeledComponent("Center:", frm, m_cho_center);
+
+        // User center coordinate
+        Panel pc = new Panel();
+		pc.setLayout(new GridLayout(0, 2));
+        m_txt_ctrx = new TextField("0");
+        m_txt_ctrx.setEnabled(false);
+        m_txt_ctry = new TextField("0");
+        m_txt_ctry.setEnabled(false);
+        pc.add(m_txt_ctrx);
+        pc.add(m_txt_ctry);
+        addLabeledComponent("Center coordinate:", frm, pc);
+
         // Centering modes
         m_cho_ctrg = new Choice();
         m_cho_ctrg.add("No centering");
         m_cho_ctrg.add("Maximum centering");
         m_cho_ctrg.add("Source centering");
+        m_cho_ctrg.add("Correlation centering");
         m_cho_ctrg.addItemListener(this);
         addLabeledComponent("Centering mode:", frm, m_cho_ctrg);
 
+        // Statistic along each angle
+        m_cho_stat = new Choice();
+        for(String stat : RayProfiler.STATISTICS)
+        	m_cho_stat.add(stat);
+        addLabeledComponent("Statistic:", frm, m_cho_stat);
+
+        // Sampling of the rays
+        m_cho_sampling = new Choice();
+        m_cho_sampling.add("Rays");
+        m_cho_sampling.add("Polar unwrap");
+        m_cho_sampling.add("Polar unwrap with images");
+        addLabeledComponent("Sampling:", frm, m_cho_sampling);
+
+        // Rois from RoiManager
+        m_chk_manager = new Checkbox("All ROIs in ROI Manager");
+        addLabeledComponent("ROIs:", frm, m_chk_manager);
+
+        // Stack modes
+        Panel ps = new Panel();
+		ps.setLayout(new GridLayout(0, 2));
+        m_chk_stack = new Checkbox("All slices");
+        m_chk_reseg = new Checkbox("Re-segment");
+        ps.add(m_chk_stack);
+        ps.add(m_chk_reseg);
+        addLabeledComponent("Stack:", frm, ps);
+
+        // Output type
+        m_cho_out = new Choice();
+        for(String type : ProfileSink.TYPES)
+        	m_cho_out.add(type);
+        addLabeledComponent("Output:", frm, m_cho_out);
+
+        // Run statistics
+        m_cho_stats = new Choice();
+        for(String out : RunStats.OUTPUTS){
+        	m_cho_stats.add(out);
+        }
+        addLabeledComponent("Run statistics:", frm, m_cho_stats);
+
         // Point source coordinate
         Panel pr = new Panel();
 		pr.setLayout(new GridLayout(0, 2));
@@ -318,6 +467,10 @@ public class Angle_Analysis implements PlugIn, ActionListener, ItemListener, Key
         m_txt_num_ang = new TextField("360");
         addLabeledComponent("Number of angles:", frm, m_txt_num_ang);
 
+        // Number of threads
+        m_txt_threads = new TextField(String.valueOf(Runtime.getRuntime().availableProcessors()));
+        addLabeledComponent("Threads:", frm, m_txt_threads);
+
         // Lower/Higher thresholds
         m_txt_low = new TextField("2200");
         addLabeledComponent("Lower threshold level:", frm, m_txt_low);
@@ -340,13 +493,17 @@ public class Angle_Analysis implements PlugIn, ActionListener, ItemListener, Key
 		p.add(m_bt_reset);
 		frm.add(p);
 
-		// Run button
+		// Run/Cancel buttons
 		p = new Panel();
-		p.setLayout(new GridLayout(1, 1));
+		p.setLayout(new GridLayout(1, 2));
 		m_bt_run = new Button("Run");
 		m_bt_run.addActionListener(this);
 		p.add(m_bt_run);
+		m_bt_cancel = new Button("Cancel");
+		m_bt_cancel.addActionListener(this);
+		p.add(m_bt_cancel);
 		frm.add(p);
+		m_runner = new BackgroundRunner(m_bt_cancel, m_bt_run);
 
 		// Show
 		frm.show();
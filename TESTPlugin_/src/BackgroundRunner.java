@@ -0,0 +1,81 @@
+import ij.*;
+import java.awt.*;
+import java.util.concurrent.*;
+
+// Runs the analyses of a plugin window one at a time on a worker thread,
+// so that the event thread stays free. The run buttons are disabled and the
+// cancel button enabled while an analysis is running.
+public class BackgroundRunner {
+	ExecutorService m_executor;
+	Component[] m_run_buttons;
+	Component m_cancel_button;
+	CancelFlag m_flag;					// flag of the running analysis (null if idle)
+
+	public BackgroundRunner(Component cancel_button, Component... run_buttons){
+		m_cancel_button = cancel_button;
+		m_run_buttons = run_buttons;
+		m_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "Analysis worker");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		setRunning(false);
+	}
+
+	// Analysis checking the flag between its steps
+	public interface Task {
+		void run(CancelFlag flag) throws Exception;
+	}
+
+	// Start task unless another one is running (returns false then)
+	public synchronized boolean submit(final String title, final Task task){
+		if (m_flag != null){
+			IJ.showStatus(title + ": already running");
+			return false;
+		}
+		final CancelFlag flag = new CancelFlag();
+		m_flag = flag;
+		setRunning(true);
+		m_executor.submit(new Runnable() {
+			public void run(){
+				try{
+					task.run(flag);
+				}catch(CancellationException e){
+					IJ.showStatus(title + " canceled");
+				}catch(Throwable e){
+					IJ.handleException(e);
+				}finally{
+					IJ.showProgress(1.0);
+					finish();
+				}
+			}
+		});
+		return true;
+	}
+
+	private synchronized void finish(){
+		m_flag = null;
+		setRunning(false);
+	}
+
+	public synchronized void cancel(){
+		if (m_flag != null) m_flag.cancel();
+	}
+
+	public synchronized boolean isRunning(){
+		return m_flag != null;
+	}
+
+	private void setRunning(final boolean running){
+		EventQueue.invokeLater(new Runnable() {
+			public void run(){
+				for(Component c : m_run_buttons){
+					c.setEnabled(!running);
+				}
+				if (m_cancel_button != null) m_cancel_button.setEnabled(running);
+			}
+		});
+	}
+}
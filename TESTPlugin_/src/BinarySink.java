@@ -0,0 +1,42 @@
+import java.io.*;
+
+// Streams profiles to a compact binary file (big endian):
+//   header: "APRF", version (int), number of angles N (int)
+//   per roi: image (UTF), roi (UTF), cx, cy (float), N floats
+public class BinarySink implements ProfileSink {
+	public static final int MAGIC = 0x41505246;	// "APRF"
+	public static final int VERSION = 1;
+
+	String m_path;
+	DataOutputStream m_out;
+	int m_num_ang;
+
+	public BinarySink(String path){
+		m_path = path;
+	}
+
+	public void begin(int num_ang) throws IOException {
+		m_num_ang = num_ang;
+		m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_path), 1<<16));
+		m_out.writeInt(MAGIC);
+		m_out.writeInt(VERSION);
+		m_out.writeInt(num_ang);
+	}
+
+	public synchronized void add(String image, String roi, double cx, double cy, double[] profile) throws IOException {
+		if (profile.length != m_num_ang)
+			throw new IOException("Profile has " + profile.length + " angles, expected " + m_num_ang);
+		m_out.writeUTF(image != null ? image : "");
+		m_out.writeUTF(roi != null ? roi : "");
+		m_out.writeFloat((float)cx);
+		m_out.writeFloat((float)cy);
+		for(int i=0; i<profile.length; i++){
+			m_out.writeFloat((float)profile[i]);
+		}
+	}
+
+	public void close() throws IOException {
+		if (m_out != null)
+			m_out.close();
+	}
+}
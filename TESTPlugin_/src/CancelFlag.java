@@ -0,0 +1,19 @@
+import java.util.concurrent.*;
+
+// Cancel request shared between the GUI and a running analysis
+public class CancelFlag {
+	volatile boolean m_canceled = false;
+
+	public void cancel(){
+		m_canceled = true;
+	}
+
+	public boolean isCanceled(){
+		return m_canceled;
+	}
+
+	// Throws CancellationException once canceled
+	public void check(){
+		if (m_canceled) throw new CancellationException();
+	}
+}
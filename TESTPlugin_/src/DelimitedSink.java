@@ -0,0 +1,49 @@
+import java.io.*;
+
+// Streams profiles to a CSV/TSV file, one row per roi
+public class DelimitedSink implements ProfileSink {
+	String m_path;
+	char m_sep;
+	Writer m_out;
+
+	public DelimitedSink(String path, char sep){
+		m_path = path;
+		m_sep = sep;
+	}
+
+	public void begin(int num_ang) throws IOException {
+		m_out = new BufferedWriter(new FileWriter(m_path), 1<<16);
+		m_out.write("Image" + m_sep + "ROI" + m_sep + "X" + m_sep + "Y");
+		for(int i=0; i<num_ang; i++){
+			m_out.write(m_sep + "A" + i);
+		}
+		m_out.write('\n');
+	}
+
+	// Quote names which contain the separator
+	private String quote(String s){
+		if (s == null) return "";
+		if (s.indexOf(m_sep) < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	public synchronized void add(String image, String roi, double cx, double cy, double[] profile) throws IOException {
+		m_out.write(quote(image));
+		m_out.write(m_sep);
+		m_out.write(quote(roi));
+		m_out.write(m_sep);
+		m_out.write(String.valueOf(cx));
+		m_out.write(m_sep);
+		m_out.write(String.valueOf(cy));
+		for(int i=0; i<profile.length; i++){
+			m_out.write(m_sep);
+			m_out.write(String.valueOf(profile[i]));
+		}
+		m_out.write('\n');
+	}
+
+	public void close() throws IOException {
+		if (m_out != null)
+			m_out.close();
+	}
+}
@@ -0,0 +1,101 @@
+// In-place complex FFT of any length (radix-2, Bluestein for other lengths)
+public class FFT {
+	// Forward (inverse=false) or inverse transform of re + i*im.
+	// The inverse transform is scaled by 1/n.
+	public static void transform(double[] re, double[] im, boolean inverse){
+		int n = re.length;
+		if (n <= 1) return;
+		if ((n & (n-1)) == 0)
+			radix2(re, im, inverse);
+		else
+			bluestein(re, im, inverse);
+		if (inverse){
+			for(int i=0; i<n; i++){
+				re[i] /= n;
+				im[i] /= n;
+			}
+		}
+	}
+
+	// Unscaled radix-2 transform, n must be a power of 2
+	private static void radix2(double[] re, double[] im, boolean inverse){
+		int n = re.length;
+
+		// Bit reversal
+		for(int i=1, j=0; i<n; i++){
+			int bit = n >> 1;
+			for(; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if (i < j){
+				double t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+
+		// Butterflies
+		for(int len=2; len<=n; len<<=1){
+			double ang = 2*Math.PI/len * (inverse ? 1 : -1);
+			double wr = Math.cos(ang), wi = Math.sin(ang);
+			for(int i=0; i<n; i+=len){
+				double cr = 1, ci = 0;
+				for(int k=0; k<len/2; k++){
+					int a = i+k, b = i+k+len/2;
+					double xr = re[b]*cr - im[b]*ci;
+					double xi = re[b]*ci + im[b]*cr;
+					re[b] = re[a] - xr;
+					im[b] = im[a] - xi;
+					re[a] += xr;
+					im[a] += xi;
+					double t = cr*wr - ci*wi;
+					ci = cr*wi + ci*wr;
+					cr = t;
+				}
+			}
+		}
+	}
+
+	// Unscaled transform of any length as a convolution of power-of-2 length
+	private static void bluestein(double[] re, double[] im, boolean inverse){
+		int n = re.length;
+		int m = Integer.highestOneBit(2*n-1) << 1;
+
+		// Chirp exp(-i*PI*k^2/n) (k^2 taken modulo 2n for precision)
+		double[] cr = new double[n], ci = new double[n];
+		for(int k=0; k<n; k++){
+			long kk = ((long)k*k) % (2L*n);
+			double ang = Math.PI*kk/n * (inverse ? 1 : -1);
+			cr[k] = Math.cos(ang);
+			ci[k] = Math.sin(ang);
+		}
+
+		double[] ar = new double[m], ai = new double[m];
+		double[] br = new double[m], bi = new double[m];
+		for(int k=0; k<n; k++){
+			ar[k] = re[k]*cr[k] - im[k]*ci[k];
+			ai[k] = re[k]*ci[k] + im[k]*cr[k];
+		}
+		br[0] = cr[0];
+		bi[0] = -ci[0];
+		for(int k=1; k<n; k++){
+			br[k] = br[m-k] = cr[k];
+			bi[k] = bi[m-k] = -ci[k];
+		}
+
+		// Convolution
+		radix2(ar, ai, false);
+		radix2(br, bi, false);
+		for(int k=0; k<m; k++){
+			double t = ar[k]*br[k] - ai[k]*bi[k];
+			ai[k] = ar[k]*bi[k] + ai[k]*br[k];
+			ar[k] = t;
+		}
+		radix2(ar, ai, true);
+
+		for(int k=0; k<n; k++){
+			double xr = ar[k]/m, xi = ai[k]/m;
+			re[k] = xr*cr[k] - xi*ci[k];
+			im[k] = xr*ci[k] + xi*cr[k];
+		}
+	}
+}
@@ -0,0 +1,34 @@
+import ij.*;
+import ij.process.*;
+
+// The z slices of one channel and frame of a hyperstack, read from the
+// hyperstack on demand without copying.
+public class FrameStack extends VirtualStack {
+	ImageStack m_stack;
+	int[] m_index;						// hyperstack index of each slice (1-based)
+
+	public FrameStack(ImagePlus imp, ImageStack stack, int channel, int frame){
+		super(stack.getWidth(), stack.getHeight(), imp.getNSlices(), bitDepth(imp));
+		m_stack = stack;
+		m_index = new int[imp.getNSlices()];
+		for(int z=1; z<=m_index.length; z++){
+			m_index[z-1] = imp.getStackIndex(channel, z, frame);
+		}
+	}
+
+	private static String bitDepth(ImagePlus imp){
+		int depth = imp.getBitDepth();
+		return depth == 8 ? "8-bit" : depth == 16 ? "16-bit" : depth == 24 ? "RGB" : "32-bit";
+	}
+
+	public ImageProcessor getProcessor(int n){
+		if (n < 1 || n > m_index.length)
+			throw new IllegalArgumentException("Slice out of range: " + n);
+		return m_stack.getProcessor(m_index[n-1]);
+	}
+
+	// Hyperstack index of slice n
+	public int getStackIndex(int n){
+		return m_index[n-1];
+	}
+}
@@ -0,0 +1,171 @@
+import ij.*;
+import ij.measure.*;
+import ij.gui.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Objects of a time-lapse hyperstack followed through its frames.
+// Each frame is labelled on its own thread; an object continues into the
+// next frame through the 3D components sharing a voxel with it there.
+// Rows are added to the results table in frame order as frames are done.
+// Only the start frame and the frames being linked are held in memory.
+public class FrameTracker {
+	ImagePlus m_imp;
+	ImageStack m_stack;					// pixels of all frames
+	double m_low, m_high;				// thresholds (inclusive)
+	int m_min_area;						// ignore 2D components up to this area
+	double m_z_px;						// z-pixels
+	CancelFlag m_cancel;				// may be null
+	RunStats m_stats = RunStats.NONE;	// of the run
+
+	public FrameTracker(ImagePlus imp, ImageStack stack, double low, double high, int min_area, double z_px){
+		m_imp = imp;
+		m_stack = stack;
+		m_low = low;
+		m_high = high;
+		m_min_area = min_area;
+		m_z_px = z_px;
+	}
+
+	public void setCancelFlag(CancelFlag flag){
+		m_cancel = flag;
+	}
+
+	// Stats of the run (null: none)
+	public void setRunStats(RunStats stats){
+		m_stats = stats != null ? stats : RunStats.NONE;
+	}
+
+	private void checkCanceled(){
+		if (m_cancel != null) m_cancel.check();
+	}
+
+	private static <T> T get(Future<T> f){
+		try{
+			return f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	// Follow the objects grown from seeds[k] on z plane zs[k] of frame t0 through
+	// all frames, adding one row per object and frame to rt (shown as title).
+	// Labels get the object ID when tagged
+	public void track(Roi[] seeds, int[] zs, int t0, ResultsTable rt, String title, boolean tagged){
+		final int nframes = m_imp.getNFrames();
+		final int channel = m_imp.getC();
+		int nthreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), nframes));
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		try{
+			// Frames labelled from t0 outwards, in the order they are linked
+			ArrayList<Integer> order = new ArrayList<Integer>();
+			order.add(t0);
+			for(int t=t0-1; t>=1; t--) order.add(t);
+			for(int t=t0+1; t<=nframes; t++) order.add(t);
+			Iterator<Integer> next = order.iterator();
+			ArrayDeque<Future<VoxelSegmenter>> pending = new ArrayDeque<Future<VoxelSegmenter>>();
+
+			// Frames are measured on the pool as soon as they are linked; their rows
+			// wait here until the frames before them are in the table
+			TreeMap<Integer, Future<ObjectMetrics[]>> rows = new TreeMap<Integer, Future<ObjectMetrics[]>>();
+			ArrayDeque<Future<ObjectMetrics[]>> measuring = new ArrayDeque<Future<ObjectMetrics[]>>();
+			int shown = 0;
+
+			// Link backwards from t0, then forwards; only t0 and the frame being
+			// linked to are kept
+			VoxelSegmenter first = nextFrame(pool, next, pending, nthreads, channel);
+			int[][] first_roots = first.getObjectRoots(seeds, zs);
+			rows.put(t0, measure(pool, measuring, nthreads, first, first_roots));
+			for(int dir=-1; dir<=1; dir+=2){
+				VoxelSegmenter seg = first;
+				int[][] roots = first_roots;
+				for(int t=t0+dir; t>=1 && t<=nframes; t+=dir){
+					checkCanceled();
+					VoxelSegmenter prev = seg;
+					seg = nextFrame(pool, next, pending, nthreads, channel);
+					roots = seg.getOverlappingRoots(prev, roots);
+					rows.put(t, measure(pool, measuring, nthreads, seg, roots));
+					shown = showRows(rt, rows, shown, title, tagged, false);
+				}
+			}
+			showRows(rt, rows, shown, title, tagged, true);
+		}finally{
+			pool.shutdownNow();
+		}
+	}
+
+	// Labels of the next frame of order; up to window more frames are labelled
+	// ahead, so that measurements are not queued behind all the labelling
+	private VoxelSegmenter nextFrame(ExecutorService pool, Iterator<Integer> order,
+			ArrayDeque<Future<VoxelSegmenter>> pending, int window, int channel){
+		while(order.hasNext() && pending.size() <= window){
+			pending.add(pool.submit(labelTask(order.next(), channel)));
+		}
+		return get(pending.remove());
+	}
+
+	private Callable<VoxelSegmenter> labelTask(final int t, final int channel){
+		return new Callable<VoxelSegmenter>() {
+			public VoxelSegmenter call(){
+				VoxelSegmenter seg = new VoxelSegmenter(m_low, m_high, m_min_area);
+				seg.setCancelFlag(m_cancel);
+				seg.setRunStats(m_stats);
+				seg.label(new FrameStack(m_imp, m_stack, channel, t));
+				return seg;
+			}
+		};
+	}
+
+	// Measure the objects of roots in seg on the pool. A frame waiting to be
+	// measured holds its labels, so at most window frames are queued
+	private Future<ObjectMetrics[]> measure(ExecutorService pool, ArrayDeque<Future<ObjectMetrics[]>> measuring,
+			int window, VoxelSegmenter seg, int[][] roots){
+		while(!measuring.isEmpty() && (measuring.peek().isDone() || measuring.size() >= window)){
+			get(measuring.remove());
+		}
+		Future<ObjectMetrics[]> f = pool.submit(measureTask(seg, roots));
+		measuring.add(f);
+		return f;
+	}
+
+	private Callable<ObjectMetrics[]> measureTask(final VoxelSegmenter seg, final int[][] roots){
+		return new Callable<ObjectMetrics[]>() {
+			public ObjectMetrics[] call(){
+				ObjectMetrics[] res = new ObjectMetrics[roots.length];
+				for(int k=0; k<roots.length; k++){
+					if (roots[k].length == 0) continue;
+					res[k] = ObjectMetrics.forCalibration(m_imp.getWidth(), m_imp.getHeight(), m_imp.getCalibration(), m_z_px);
+					seg.measure(roots[k], res[k]);
+				}
+				return res;
+			}
+		};
+	}
+
+	// Rows of the measured frames right after the frames already shown (all of
+	// them if wait); returns the number of frames shown
+	private int showRows(ResultsTable rt, TreeMap<Integer, Future<ObjectMetrics[]>> rows, int shown, String title, boolean tagged, boolean wait){
+		while(!rows.isEmpty() && rows.firstKey() == shown + 1 && (wait || rows.firstEntry().getValue().isDone())){
+			addRows(rt, get(rows.pollFirstEntry().getValue()), ++shown, title, tagged);
+		}
+		return shown;
+	}
+
+	// One row per object present in frame t; the table is shown again after each frame
+	private void addRows(ResultsTable rt, ObjectMetrics[] metrics, int t, String title, boolean tagged){
+		double interval = m_imp.getCalibration().frameInterval;
+		for(int k=0; k<metrics.length; k++){
+			if (metrics[k] == null) continue;
+			metrics[k].addTo(rt, m_imp.getTitle() + " t" + t + (tagged ? Volume_Analysis.OBJECT_TAG + (k+1) : ""));
+			rt.addValue("Frame", t);
+			rt.addValue("Object", k+1);
+			if (interval > 0) rt.addValue("Time", (t-1)*interval);
+		}
+		rt.show(title);
+		IJ.showProgress(t, m_imp.getNFrames());
+	}
+}
@@ -0,0 +1,29 @@
+import ij.*;
+
+// Writes profiles to the Log window, one value per line after a line with
+// the image, roi (with the stack position) and center, tab-separated
+public class LogSink implements ProfileSink {
+	public void begin(int num_ang){
+		IJ.log("\\Clear");
+	}
+
+	// One log call per roi
+	public synchronized void add(String image, String roi, double cx, double cy, double[] profile){
+		IJ.log(format(image, roi, cx, cy, profile));
+	}
+
+	static String format(String image, String roi, double cx, double cy, double[] profile){
+		StringBuilder sb = new StringBuilder(64 + profile.length*12);
+		sb.append(image != null ? image : "").append('\t');
+		sb.append(roi != null ? roi : "").append('\t');
+		sb.append(cx).append('\t').append(cy);
+		for(int i=0; i<profile.length; i++){
+			sb.append('\n').append(profile[i]);
+		}
+		return sb.toString();
+	}
+
+	public void close(){
+		// Do nothing
+	}
+}
@@ -0,0 +1,216 @@
+import ij.*;
+import ij.process.*;
+import ij.io.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Stack of an uncompressed TIFF or raw file read through memory mapping.
+// Slices are decoded on demand; the next few slices are read ahead on a
+// worker thread, and only the slices of that window stay in memory.
+// Each calling thread has its own window, which follows the step between
+// its last two slices, so that the z slices of one hyperstack frame
+// (FrameStack) are read ahead too and several callers do not cancel
+// each other's reads.
+public class MappedStack extends VirtualStack implements Closeable {
+	static final int DEFAULT_READ_AHEAD = 4;
+
+	FileChannel m_channel;
+	int m_type;							// FileInfo.GRAY8, GRAY16_SIGNED, GRAY16_UNSIGNED or GRAY32_FLOAT
+	ByteOrder m_order;
+	long[] m_offsets;					// file offset of each slice
+	int m_read_ahead;
+	ExecutorService m_reader;
+	List<Window> m_windows = new ArrayList<Window>();	// of all callers
+
+	// Read-ahead of one calling thread
+	static class Window {
+		int last = 0;					// last slice read
+		int stride = 1;
+		Map<Integer, Future<Object>> slices = new HashMap<Integer, Future<Object>>();
+	}
+
+	ThreadLocal<Window> m_window = new ThreadLocal<Window>() {
+		protected Window initialValue(){
+			Window w = new Window();
+			synchronized(MappedStack.this){
+				m_windows.add(w);
+			}
+			return w;
+		}
+	};
+
+	private MappedStack(FileInfo fi, long[] offsets, FileChannel channel, int read_ahead){
+		super(fi.width, fi.height, offsets.length, fi.getBytesPerPixel() == 1 ? "8-bit" : fi.getBytesPerPixel() == 2 ? "16-bit" : "32-bit");
+		m_type = fi.fileType;
+		m_order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		m_offsets = offsets;
+		m_channel = channel;
+		m_read_ahead = read_ahead;
+		m_reader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r, "Slice read-ahead");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// Mapped stack of the file imp was opened from (null if it cannot be mapped)
+	public static MappedStack open(ImagePlus imp){
+		return open(imp, DEFAULT_READ_AHEAD);
+	}
+
+	public static MappedStack open(ImagePlus imp, int read_ahead){
+		FileInfo ofi = imp.getOriginalFileInfo();
+		if (ofi == null || ofi.directory == null || ofi.fileName == null) return null;
+		try{
+			FileInfo[] info;
+			if (ofi.fileFormat == FileInfo.TIFF){
+				info = new TiffDecoder(ofi.directory, ofi.fileName).getTiffInfo();
+			}else if (ofi.fileFormat == FileInfo.RAW){
+				info = new FileInfo[]{ofi};
+			}else{
+				return null;
+			}
+			if (info == null || info.length == 0 || !isSupported(info[0])) return null;
+
+			// Slice offsets: one slice per FileInfo, or contiguous slices with a gap
+			FileInfo fi = info[0];
+			long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
+			long[] offsets;
+			if (info.length > 1){
+				offsets = new long[info.length];
+				for(int i=0; i<info.length; i++){
+					FileInfo f = info[i];
+					if (f.width != fi.width || f.height != fi.height || f.fileType != fi.fileType
+							|| f.intelByteOrder != fi.intelByteOrder || f.nImages > 1 || !isSupported(f))
+						return null;
+					offsets[i] = f.getOffset();
+				}
+			}else{
+				offsets = new long[Math.max(fi.nImages, 1)];
+				for(int i=0; i<offsets.length; i++){
+					offsets[i] = fi.getOffset() + i*(size + fi.getGap());
+				}
+			}
+			if (offsets.length != imp.getStackSize()) return null;
+
+			FileChannel channel = new RandomAccessFile(new File(ofi.directory, ofi.fileName), "r").getChannel();
+			for(long off : offsets){
+				if (off < 0 || off + size > channel.size()){
+					channel.close();
+					return null;
+				}
+			}
+			return new MappedStack(fi, offsets, channel, read_ahead);
+		}catch(IOException e){
+			return null;
+		}
+	}
+
+	// Uncompressed gray images stored in one piece
+	public static boolean isSupported(FileInfo fi){
+		if (fi.compression > FileInfo.COMPRESSION_NONE) return false;
+		if (fi.fileType != FileInfo.GRAY8 && fi.fileType != FileInfo.GRAY16_SIGNED
+				&& fi.fileType != FileInfo.GRAY16_UNSIGNED && fi.fileType != FileInfo.GRAY32_FLOAT)
+			return false;
+		if (fi.stripOffsets != null && fi.stripLengths != null){
+			for(int i=0; i+1<fi.stripOffsets.length; i++){
+				if (fi.stripOffsets[i+1] != fi.stripOffsets[i] + fi.stripLengths[i]) return false;
+			}
+		}
+		return true;
+	}
+
+	// Decode slice n (1-based) from the file
+	private Object readSlice(int n) throws IOException {
+		int npixels = getWidth()*getHeight();
+		int bpp = m_type == FileInfo.GRAY8 ? 1 : m_type == FileInfo.GRAY32_FLOAT ? 4 : 2;
+		ByteBuffer buf = m_channel.map(FileChannel.MapMode.READ_ONLY, m_offsets[n-1], (long)npixels*bpp);
+		buf.order(m_order);
+		if (m_type == FileInfo.GRAY8){
+			byte[] pixels = new byte[npixels];
+			buf.get(pixels);
+			return pixels;
+		}else if (m_type == FileInfo.GRAY32_FLOAT){
+			float[] pixels = new float[npixels];
+			buf.asFloatBuffer().get(pixels);
+			return pixels;
+		}
+		short[] pixels = new short[npixels];
+		buf.asShortBuffer().get(pixels);
+		if (m_type == FileInfo.GRAY16_SIGNED){
+			for(int i=0; i<npixels; i++){
+				pixels[i] = (short)(pixels[i] + 32768);
+			}
+		}
+		return pixels;
+	}
+
+	private Future<Object> submit(final int n){
+		return m_reader.submit(new Callable<Object>() {
+			public Object call() throws IOException {
+				return readSlice(n);
+			}
+		});
+	}
+
+	// Slice n, and start reading the following slices of this caller
+	public ImageProcessor getProcessor(int n){
+		if (n < 1 || n > getSize())
+			throw new IllegalArgumentException("Slice out of range: " + n);
+		Window w = m_window.get();
+		Future<Object> f;
+		synchronized(this){
+			f = w.slices.remove(n);
+			if (w.last > 0 && n != w.last) w.stride = n - w.last;
+			w.last = n;
+
+			// Keep only the read-ahead window: n + stride, n + 2*stride, ...
+			Iterator<Map.Entry<Integer, Future<Object>>> it = w.slices.entrySet().iterator();
+			while(it.hasNext()){
+				Map.Entry<Integer, Future<Object>> e = it.next();
+				int k = (e.getKey() - n)/w.stride;
+				if (k < 1 || k > m_read_ahead || n + k*w.stride != e.getKey()){
+					e.getValue().cancel(false);
+					it.remove();
+				}
+			}
+			for(int k=1; k<=m_read_ahead; k++){
+				int m = n + k*w.stride;
+				if (m < 1 || m > getSize()) break;
+				if (!w.slices.containsKey(m)) w.slices.put(m, submit(m));
+			}
+		}
+
+		// Slices outside the window are read on this thread
+		Object pixels;
+		try{
+			pixels = f != null ? f.get() : readSlice(n);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}catch(ExecutionException e){
+			throw new RuntimeException("Cannot read slice " + n + ": " + e.getCause().getMessage(), e.getCause());
+		}catch(IOException e){
+			throw new RuntimeException("Cannot read slice " + n + ": " + e.getMessage(), e);
+		}
+		if (pixels instanceof byte[])
+			return new ByteProcessor(getWidth(), getHeight(), (byte[])pixels);
+		if (pixels instanceof short[])
+			return new ShortProcessor(getWidth(), getHeight(), (short[])pixels, null);
+		return new FloatProcessor(getWidth(), getHeight(), (float[])pixels);
+	}
+
+	public synchronized void close() throws IOException {
+		m_reader.shutdownNow();
+		for(Window w : m_windows){
+			w.slices.clear();
+		}
+		m_windows.clear();
+		m_channel.close();
+	}
+}
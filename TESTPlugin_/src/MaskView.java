@@ -0,0 +1,52 @@
+import ij.*;
+import ij.gui.*;
+
+// Shows the objects of a mask on the slice being viewed, as the selection.
+// The roi of a slice is made when the slice is shown.
+public class MaskView implements ImageListener {
+	static MaskView s_active;			// one view at a time
+
+	ImagePlus m_imp;
+	RunLengthMask m_mask;
+	int m_slice;						// slice whose roi is shown
+
+	private MaskView(ImagePlus imp, RunLengthMask mask){
+		m_imp = imp;
+		m_mask = mask;
+	}
+
+	// Show mask on imp, replacing the previous view
+	public static synchronized void show(ImagePlus imp, RunLengthMask mask){
+		stop();
+		s_active = new MaskView(imp, mask);
+		ImagePlus.addImageListener(s_active);
+		s_active.update();
+	}
+
+	public static synchronized void stop(){
+		if (s_active == null) return;
+		ImagePlus.removeImageListener(s_active);
+		s_active = null;
+	}
+
+	private void update(){
+		int z = m_imp.getCurrentSlice();
+		if (z == m_slice || z > m_mask.getSize()) return;
+		m_slice = z;
+		Roi roi = m_mask.getRoi(z, 0);
+		if (roi != null) m_imp.setRoi(roi);
+		else m_imp.deleteRoi();
+	}
+
+	public void imageOpened(ImagePlus imp){
+		// Nothing to show
+	}
+
+	public void imageClosed(ImagePlus imp){
+		if (imp == m_imp) stop();
+	}
+
+	public void imageUpdated(ImagePlus imp){
+		if (imp == m_imp) update();
+	}
+}
@@ -0,0 +1,214 @@
+import ij.measure.*;
+import java.util.*;
+
+// Calibrated volume, surface, bounding box and centroid of one object,
+// accumulated from its slice masks or runs in increasing z order.
+// Only the runs of the previous slice are kept.
+public class ObjectMetrics {
+	double m_pw, m_ph, m_pd;			// voxel size
+	int m_width, m_height;
+
+	long m_voxels;
+	double m_sx, m_sy, m_sz;			// sums of voxel centers (pixels)
+	int m_minx = Integer.MAX_VALUE, m_miny = Integer.MAX_VALUE, m_minz = Integer.MAX_VALUE;
+	int m_maxx = -1, m_maxy = -1, m_maxz = -1;
+	double m_perimeter;					// sum of the slice contour lengths
+	long m_cap;							// pixels of the top/bottom faces
+
+	int[] m_prev;						// runs of the previous slice (null after a gap)
+	int m_prev_z = Integer.MIN_VALUE;
+	long m_prev_area;
+
+	public ObjectMetrics(int width, int height, double pw, double ph, double pd){
+		m_width = width;
+		m_height = height;
+		m_pw = pw;
+		m_ph = ph;
+		m_pd = pd;
+	}
+
+	// Voxel size from the image calibration; z_px is the slice spacing in pixels when uncalibrated
+	public static ObjectMetrics forCalibration(int width, int height, Calibration cal, double z_px){
+		if (cal != null && cal.scaled())
+			return new ObjectMetrics(width, height, cal.pixelWidth, cal.pixelHeight, cal.pixelDepth);
+		return new ObjectMetrics(width, height, 1, 1, z_px);
+	}
+
+	// Add the mask (non-zero inside, width*height) of slice z
+	public void addSlice(int z, byte[] mask){
+		int n = 0;
+		int[] runs = new int[48];
+		for(int y=0; y<m_height; y++){
+			int off = y*m_width;
+			for(int x=0; x<m_width; x++){
+				if (mask[off + x] == 0) continue;
+				int x0 = x;
+				while(x < m_width && mask[off + x] != 0) x++;
+				if (n + 3 > runs.length) runs = Arrays.copyOf(runs, 2*runs.length);
+				runs[n++] = y;
+				runs[n++] = x0;
+				runs[n++] = x;
+			}
+		}
+		addRuns(z, Arrays.copyOf(runs, n));
+	}
+
+	// Add the runs {y, x0, x1 (exclusive)} of slice z, sorted by y and x
+	public void addRuns(int z, int[] runs){
+		if (z <= m_prev_z)
+			throw new IllegalArgumentException("Slices must be added in increasing order: " + z);
+
+		long area = 0;
+		for(int i=0; i<runs.length; i+=3){
+			int y = runs[i], x0 = runs[i+1], x1 = runs[i+2];
+			int len = x1 - x0;
+			area += len;
+			m_sx += len*(x0 + x1)/2.0;
+			m_sy += len*(y + 0.5);
+			if (x0 < m_minx) m_minx = x0;
+			if (x1-1 > m_maxx) m_maxx = x1-1;
+			if (y < m_miny) m_miny = y;
+			if (y > m_maxy) m_maxy = y;
+		}
+		if (area > 0){
+			m_voxels += area;
+			m_sz += area*(z - 0.5);
+			if (z < m_minz) m_minz = z;
+			if (z > m_maxz) m_maxz = z;
+			m_perimeter += getPerimeter(runs);
+		}
+
+		// Faces between this slice and the previous one: pixels in one of them only
+		if (m_prev != null && z == m_prev_z + 1){
+			m_cap += m_prev_area + area - 2*getOverlap(m_prev, runs);
+		}else{
+			m_cap += m_prev_area + area;
+		}
+		m_prev = runs;
+		m_prev_z = z;
+		m_prev_area = area;
+	}
+
+	// Pixels shared by two sorted run lists
+	private static long getOverlap(int[] a, int[] b){
+		long n = 0;
+		int i = 0, j = 0;
+		while(i < a.length && j < b.length){
+			if (a[i] != b[j]){
+				if (a[i] < b[j]) i += 3; else j += 3;
+				continue;
+			}
+			int lo = Math.max(a[i+1], b[j+1]), hi = Math.min(a[i+2], b[j+2]);
+			if (hi > lo) n += hi - lo;
+			if (a[i+2] < b[j+2]) i += 3; else j += 3;
+		}
+		return n;
+	}
+
+	// Close the top face of the last slice
+	public void finish(){
+		m_cap += m_prev_area;
+		m_prev = null;
+		m_prev_area = 0;
+	}
+
+	// Contour length of the runs, on a mask of their bounding box only
+	private double getPerimeter(int[] runs){
+		int minx = Integer.MAX_VALUE, maxx = 0;
+		for(int i=0; i<runs.length; i+=3){
+			minx = Math.min(minx, runs[i+1]);
+			maxx = Math.max(maxx, runs[i+2]);
+		}
+		int y0 = runs[0], w = maxx - minx, h = runs[runs.length-3] - y0 + 1;
+		byte[] mask = new byte[w*h];
+		for(int i=0; i<runs.length; i+=3){
+			Arrays.fill(mask, (runs[i] - y0)*w + runs[i+1] - minx, (runs[i] - y0)*w + runs[i+2] - minx, (byte)1);
+		}
+		return getPerimeter(mask, w, h);
+	}
+
+	// Calibrated length of the marching-squares contour of the mask,
+	// with pixel centers as grid points and the outside of the image empty
+	public double getPerimeter(byte[] mask){
+		return getPerimeter(mask, m_width, m_height);
+	}
+
+	private double getPerimeter(byte[] mask, int width, int height){
+		double diag = Math.sqrt(m_pw*m_pw + m_ph*m_ph)/2;
+		long ndiag = 0, nhorz = 0, nvert = 0;
+		for(int y=-1; y<height; y++){
+			for(int x=-1; x<width; x++){
+				// Corners: 1 top-left, 2 top-right, 4 bottom-right, 8 bottom-left
+				int c = (isSet(mask, width, height, x, y) ? 1 : 0) | (isSet(mask, width, height, x+1, y) ? 2 : 0)
+						| (isSet(mask, width, height, x+1, y+1) ? 4 : 0) | (isSet(mask, width, height, x, y+1) ? 8 : 0);
+				switch(c){
+				case 0: case 15:
+					break;
+				case 3: case 12:
+					nhorz++;
+					break;
+				case 6: case 9:
+					nvert++;
+					break;
+				case 5: case 10:
+					ndiag += 2;
+					break;
+				default:
+					ndiag++;
+				}
+			}
+		}
+		return ndiag*diag + nhorz*m_pw + nvert*m_ph;
+	}
+
+	private static boolean isSet(byte[] mask, int width, int height, int x, int y){
+		if (x < 0 || y < 0 || x >= width || y >= height) return false;
+		return mask[y*width + x] != 0;
+	}
+
+	public long getVoxelCount(){
+		return m_voxels;
+	}
+
+	public double getVolume(){
+		return m_voxels*m_pw*m_ph*m_pd;
+	}
+
+	// Contour lengths times the slice spacing plus the faces between slices
+	public double getSurface(){
+		return m_perimeter*m_pd + m_cap*m_pw*m_ph;
+	}
+
+	// Calibrated centroid {x, y, z}
+	public double[] getCentroid(){
+		if (m_voxels == 0) return new double[]{Double.NaN, Double.NaN, Double.NaN};
+		return new double[]{m_sx/m_voxels*m_pw, m_sy/m_voxels*m_ph, m_sz/m_voxels*m_pd};
+	}
+
+	// Calibrated bounding box {x, y, z, width, height, depth}
+	public double[] getBounds(){
+		if (m_voxels == 0) return new double[6];
+		return new double[]{m_minx*m_pw, m_miny*m_ph, (m_minz-1)*m_pd,
+				(m_maxx-m_minx+1)*m_pw, (m_maxy-m_miny+1)*m_ph, (m_maxz-m_minz+1)*m_pd};
+	}
+
+	// Add one row of measurements to rt
+	public void addTo(ResultsTable rt, String label){
+		double[] c = getCentroid();
+		double[] b = getBounds();
+		rt.incrementCounter();
+		rt.addLabel(label);
+		rt.addValue("Volume", getVolume());
+		rt.addValue("Surface", getSurface());
+		rt.addValue("Voxels", m_voxels);
+		rt.addValue("X", c[0]);
+		rt.addValue("Y", c[1]);
+		rt.addValue("Z", c[2]);
+		rt.addValue("BX", b[0]);
+		rt.addValue("BY", b[1]);
+		rt.addValue("BZ", b[2]);
+		rt.addValue("B-width", b[3]);
+		rt.addValue("B-height", b[4]);
+		rt.addValue("B-depth", b[5]);
+	}
+}
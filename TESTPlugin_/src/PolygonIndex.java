@@ -0,0 +1,118 @@
+import ij.process.*;
+
+// Edges of a closed polygon bucketed by the polar angle range they subtend
+// from a center point, so that a ray from the center only needs to be
+// tested against the few edges of its angle bin.
+public class PolygonIndex {
+	static final double TWO_PI = 2*Math.PI;
+	static final double EPS = 1e-9;		// angle padding of each edge
+
+	double m_cx, m_cy;					// center
+	double[] m_x, m_y;					// vertices relative to the center
+	int m_nbins;
+	int[] m_bin_start;					// edges of bin b: m_bin_edges[m_bin_start[b]..m_bin_start[b+1]-1]
+	int[] m_bin_edges;					// edge i goes from vertex i to i+1 (closing edge included)
+
+	public PolygonIndex(FloatPolygon pol, double cx, double cy){
+		this(pol, cx, cy, Math.max(16, Math.min(pol.npoints, 8192)));
+	}
+
+	public PolygonIndex(FloatPolygon pol, double cx, double cy, int nbins){
+		int n = pol.npoints;
+		m_cx = cx;
+		m_cy = cy;
+		m_nbins = nbins;
+		m_x = new double[n];
+		m_y = new double[n];
+		for(int i=0; i<n; i++){
+			m_x[i] = pol.xpoints[i] - cx;
+			m_y[i] = pol.ypoints[i] - cy;
+		}
+
+		// Angle range (first bin and number of bins) of each edge
+		int[] first = new int[n];
+		int[] count = new int[n];
+		m_bin_start = new int[nbins+1];
+		double w = TWO_PI/nbins;
+		for(int i=0; i<n; i++){
+			int j = (i+1) % n;
+			double a1 = angle(m_x[i], m_y[i]);
+			double a2 = angle(m_x[j], m_y[j]);
+			double d = a2 - a1;
+			if (d > Math.PI) d -= TWO_PI;
+			if (d < -Math.PI) d += TWO_PI;
+			double lo = d >= 0 ? a1 : a1 + d;
+			double hi = lo + Math.abs(d);
+			if (Math.abs(d) >= Math.PI - EPS){
+				// Edge passes through the center: it may be hit from any side
+				lo = 0;
+				hi = TWO_PI - w;
+			}
+			int b1 = (int)Math.floor((lo - EPS)/w);
+			int b2 = (int)Math.floor((hi + EPS)/w);
+			first[i] = ((b1 % nbins) + nbins) % nbins;
+			count[i] = Math.min(b2 - b1 + 1, nbins);
+			for(int k=0; k<count[i]; k++){
+				m_bin_start[(first[i] + k) % nbins + 1]++;
+			}
+		}
+
+		// Fill bins
+		for(int b=0; b<nbins; b++){
+			m_bin_start[b+1] += m_bin_start[b];
+		}
+		m_bin_edges = new int[m_bin_start[nbins]];
+		int[] fill = new int[nbins];
+		for(int i=0; i<n; i++){
+			for(int k=0; k<count[i]; k++){
+				int b = (first[i] + k) % nbins;
+				m_bin_edges[m_bin_start[b] + fill[b]++] = i;
+			}
+		}
+	}
+
+	// Polar angle in 0 to 2*PI
+	private static double angle(double x, double y){
+		double a = Math.atan2(y, x);
+		return a < 0 ? a + TWO_PI : a;
+	}
+
+	// Number of edges tested for the angle
+	public int getEdgeCount(double angle){
+		double a = angle % TWO_PI;
+		if (a < 0) a += TWO_PI;
+		int b = Math.min((int)(a/(TWO_PI/m_nbins)), m_nbins-1);
+		return m_bin_start[b+1] - m_bin_start[b];
+	}
+
+	// Distance from the center to the farthest intersection along the angle
+	public double getIntersectionLength(double angle){
+		return getIntersectionLength(angle, Math.cos(angle), Math.sin(angle));
+	}
+
+	// Same as above with precomputed cos/sin of the angle
+	public double getIntersectionLength(double angle, double cos, double sin){
+		int n = m_x.length;
+		double a = angle % TWO_PI;
+		if (a < 0) a += TWO_PI;
+		int b = (int)(a/(TWO_PI/m_nbins));
+		if (b >= m_nbins) b = m_nbins-1;
+
+		double maxlen = 0;
+		for(int k=m_bin_start[b]; k<m_bin_start[b+1]; k++){
+			int i = m_bin_edges[k];
+			int j = i+1 < n ? i+1 : 0;
+			double x1 = m_x[i], y1 = m_y[i];
+			double ex = m_x[j] - x1, ey = m_y[j] - y1;
+
+			// Solving t*(cos,sin) = (x1,y1) + u*(ex,ey)
+			double D = cos*ey - sin*ex;
+			if (D == 0) continue;
+			double t = (x1*ey - y1*ex)/D;
+			double u = (x1*sin - y1*cos)/D;
+			if (t > maxlen && u >= 0 && u <= 1)
+				maxlen = t;
+		}
+		return maxlen;
+	}
+}
@@ -0,0 +1,25 @@
+import java.io.*;
+
+// Receives one angle profile per roi as soon as it is finished
+public interface ProfileSink {
+	public static final String[] TYPES = {"Log window", "Results table", "CSV file", "TSV file", "Binary file"};
+
+	// Called once before the first profile
+	void begin(int num_ang) throws IOException;
+
+	// Profile of one roi; image and roi name, center of the rays
+	void add(String image, String roi, double cx, double cy, double[] profile) throws IOException;
+
+	// Called once after the last profile
+	void close() throws IOException;
+
+	// File sink chosen by extension (.tsv/.txt, .bin, otherwise CSV)
+	public static ProfileSink forPath(String path){
+		String name = path.toLowerCase();
+		if (name.endsWith(".bin"))
+			return new BinarySink(path);
+		if (name.endsWith(".tsv") || name.endsWith(".txt"))
+			return new DelimitedSink(path, '\t');
+		return new DelimitedSink(path, ',');
+	}
+}
@@ -0,0 +1,178 @@
+import ij.*;
+import ij.process.*;
+import ij.gui.*;
+
+// Samples straight rays directly on a float snapshot of the image.
+// Samples are taken as in ImageProcessor.getLine(), i.e. like ProfilePlot
+// for a straight Line roi, without setting any roi on the image.
+// The snapshot is read-only, so one profiler can be shared by several threads.
+public class RayProfiler {
+	public static final String[] STATISTICS = {"Maximum", "Mean", "Integral", "Radius of maximum"};
+	public static final int MAX = 0, MEAN = 1, INTEGRAL = 2, RADIUS_OF_MAX = 3;
+
+	float[] m_pixels;				// calibrated pixel values
+	int m_width, m_height;
+	boolean m_interpolate;			// bilinear interpolation
+	private long m_checksum;		// of m_pixels, taken on first use
+	private boolean m_has_checksum;
+
+	public RayProfiler(float[] pixels, int width, int height, boolean interpolate){
+		m_pixels = pixels;
+		m_width = width;
+		m_height = height;
+		m_interpolate = interpolate;
+	}
+
+	// Snapshot of ip using the calibration table ctable (may be null)
+	public RayProfiler(ImageProcessor ip, float[] ctable, boolean interpolate){
+		this(snapshot(ip, ctable), ip.getWidth(), ip.getHeight(), interpolate);
+	}
+
+	// Snapshot of the current slice of imp with the same settings as ProfilePlot
+	public RayProfiler(ImagePlus imp){
+		this(imp.getProcessor(), imp.getCalibration().getCTable(), PlotWindow.interpolate);
+	}
+
+	// Calibrated float pixels (float images without calibration are not copied)
+	static float[] snapshot(ImageProcessor ip, float[] ctable){
+		if (ip instanceof FloatProcessor)
+			return (float[])ip.getPixels();
+		float[] ctable_old = ip.getCalibrationTable();
+		ip.setCalibrationTable(ctable);
+		float[] pixels = (float[])ip.convertToFloat().getPixels();
+		ip.setCalibrationTable(ctable_old);
+		return pixels;
+	}
+
+	// Checksum of the snapshot (SliceCache.checksum), computed once per profiler
+	public synchronized long getChecksum(){
+		if (!m_has_checksum){
+			m_checksum = SliceCache.checksum(m_pixels);
+			m_has_checksum = true;
+		}
+		return m_checksum;
+	}
+
+	public int getWidth(){
+		return m_width;
+	}
+
+	public int getHeight(){
+		return m_height;
+	}
+
+	// NaN outside the image like ImageProcessor.getPixelValue(); skipped by the statistics
+	private double getPixelValue(int x, int y){
+		if (x<0 || x>=m_width || y<0 || y>=m_height)
+			return Double.NaN;
+		return m_pixels[y*m_width + x];
+	}
+
+	private double getEdgeValue(int x, int y){
+		if (x<=0) x = 0;
+		if (x>=m_width) x = m_width-1;
+		if (y<=0) y = 0;
+		if (y>=m_height) y = m_height-1;
+		return m_pixels[y*m_width + x];
+	}
+
+	// Same as ImageProcessor.getInterpolatedValue() (bilinear)
+	double getInterpolatedValue(double x, double y){
+		boolean edge = false;
+		if (x<0.0 || x>=m_width-1.0 || y<0.0 || y>=m_height-1.0){
+			if (x<-1.0 || x>=m_width || y<-1.0 || y>=m_height)
+				return 0.0;
+			edge = true;
+		}
+		int xbase = (int)x;
+		int ybase = (int)y;
+		double xFraction = x - xbase;
+		double yFraction = y - ybase;
+		if (xFraction<0.0) xFraction = 0.0;
+		if (yFraction<0.0) yFraction = 0.0;
+		double lowerLeft, lowerRight, upperRight, upperLeft;
+		if (edge){
+			lowerLeft = getEdgeValue(xbase, ybase);
+			lowerRight = getEdgeValue(xbase+1, ybase);
+			upperRight = getEdgeValue(xbase+1, ybase+1);
+			upperLeft = getEdgeValue(xbase, ybase+1);
+		}else{
+			int i = ybase*m_width + xbase;
+			lowerLeft = m_pixels[i];
+			lowerRight = m_pixels[i+1];
+			upperRight = m_pixels[i+m_width+1];
+			upperLeft = m_pixels[i+m_width];
+		}
+		double upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+		double lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+		return lowerAverage + yFraction * (upperAverage - lowerAverage);
+	}
+
+	// Sample the ray (x1,y1)-(x2,y2) and store max, mean, integral and distance
+	// of the maximum from (x1,y1) into stats[MAX..RADIUS_OF_MAX].
+	// Returns the number of points sampled
+	public int sample(double x1, double y1, double x2, double y2, double[] stats){
+		double dx = x2-x1;
+		double dy = y2-y1;
+		int n = (int)Math.round(Math.sqrt(dx*dx + dy*dy));
+		double xinc = n>0?dx/n:0;
+		double yinc = n>0?dy/n:0;
+		if (!((xinc==0&&n==m_height) || (yinc==0&&n==m_width)))
+			n++;
+
+		double max = -Double.MAX_VALUE;
+		double sum = 0;
+		int count = 0, imax = 0;
+		double rx = x1;
+		double ry = y1;
+		for(int i=0; i<n; i++){
+			double v = m_interpolate ? getInterpolatedValue(rx, ry)
+					: getPixelValue((int)Math.round(rx), (int)Math.round(ry));
+			if (!Double.isNaN(v)){
+				if (v > max){
+					max = v;
+					imax = i;
+				}
+				sum += v;
+				count++;
+			}
+			rx += xinc;
+			ry += yinc;
+		}
+
+		stats[MAX] = max;
+		stats[MEAN] = count > 0 ? sum/count : Double.NaN;
+		stats[INTEGRAL] = sum * Math.sqrt(xinc*xinc + yinc*yinc);
+		stats[RADIUS_OF_MAX] = imax * Math.sqrt(xinc*xinc + yinc*yinc);
+		return n;
+	}
+
+	// Polar resampling around (cx, cy): out[r*N + i] is the value at unit step r
+	// of ray i of rays, for r up to lengths[i] and NaN beyond.
+	// Rows are filled one after the other. Returns the number of points sampled
+	public int unwrap(double cx, double cy, RayTemplates rays, double[] lengths, int radius, float[] out){
+		return unwrap(cx, cy, rays, lengths, radius, 0, radius + 1, out);
+	}
+
+	// Same as above for rows r0..r1-1 only; threads may fill other rows of out
+	public int unwrap(double cx, double cy, RayTemplates rays, double[] lengths, int radius, int r0, int r1, float[] out){
+		int N = rays.getNumAngles();
+		float[][] off = rays.getOffsets(radius);
+		float[] dx = off[0], dy = off[1];
+		int n = 0;
+		for(int r=r0; r<r1; r++){
+			int row = r*N;
+			for(int i=0; i<N; i++){
+				if (r > lengths[i]){
+					out[row + i] = Float.NaN;
+					continue;
+				}
+				double x = cx + dx[row + i], y = cy + dy[row + i];
+				out[row + i] = (float)(m_interpolate ? getInterpolatedValue(x, y)
+						: getPixelValue((int)Math.round(x), (int)Math.round(y)));
+				n++;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.*;
+
+// Angles and unit vectors of N equally spaced rays, and the positions of
+// unit steps along them, shared by all rois and images of a session.
+// Templates are evicted least recently used first under a memory budget.
+public class RayTemplates {
+	static final long BUDGET = 64L << 20;	// bytes for all templates
+
+	static LinkedHashMap<Integer, RayTemplates> s_cache = new LinkedHashMap<Integer, RayTemplates>(16, 0.75f, true);
+	static long s_size;
+
+	final int m_num_ang;
+	final double[] m_angle;				// 2*PI*i/N
+	final double[] m_cos, m_sin;
+	float[] m_dx, m_dy;					// offset of step r on ray i at r*N + i, r = 0..m_radius
+	int m_radius = -1;
+
+	private RayTemplates(int num_ang){
+		m_num_ang = num_ang;
+		m_angle = new double[num_ang];
+		m_cos = new double[num_ang];
+		m_sin = new double[num_ang];
+		for(int i=0; i<num_ang; i++){
+			m_angle[i] = 2*i*Math.PI/num_ang;
+			m_cos[i] = Math.cos(m_angle[i]);
+			m_sin[i] = Math.sin(m_angle[i]);
+		}
+	}
+
+	// Template of num_ang rays, made on first use
+	public static synchronized RayTemplates get(int num_ang){
+		if (num_ang <= 0)
+			throw new IllegalArgumentException("Number of angles must be positive.");
+		RayTemplates t = s_cache.get(num_ang);
+		if (t == null){
+			t = new RayTemplates(num_ang);
+			s_cache.put(num_ang, t);
+			s_size += t.getMemorySize();
+			evict(t);
+		}
+		return t;
+	}
+
+	private static void evict(RayTemplates keep){
+		Iterator<RayTemplates> it = s_cache.values().iterator();
+		while(s_size > BUDGET && it.hasNext()){
+			RayTemplates t = it.next();
+			if (t == keep) continue;
+			s_size -= t.getMemorySize();
+			it.remove();
+		}
+	}
+
+	public static synchronized void clear(){
+		s_cache.clear();
+		s_size = 0;
+	}
+
+	public int getNumAngles(){
+		return m_num_ang;
+	}
+
+	public double getAngle(int i){
+		return m_angle[i];
+	}
+
+	public double getCos(int i){
+		return m_cos[i];
+	}
+
+	public double getSin(int i){
+		return m_sin[i];
+	}
+
+	// Offsets {dx, dy} of the unit steps 0..radius of every ray; step r of
+	// ray i is at r*N + i. Longer arrays made for a larger radius may be returned
+	public float[][] getOffsets(int radius){
+		synchronized(RayTemplates.class){
+			if (radius > m_radius){
+				long old = getMemorySize();
+				int n = m_num_ang*(radius + 1);
+				float[] dx = new float[n], dy = new float[n];
+				for(int r=0; r<=radius; r++){
+					for(int i=0; i<m_num_ang; i++){
+						dx[r*m_num_ang + i] = (float)(r*m_cos[i]);
+						dy[r*m_num_ang + i] = (float)(r*m_sin[i]);
+					}
+				}
+				m_dx = dx;
+				m_dy = dy;
+				m_radius = radius;
+				if (s_cache.get(m_num_ang) == this){
+					s_size += getMemorySize() - old;
+					evict(this);
+				}
+			}
+			return new float[][]{m_dx, m_dy};
+		}
+	}
+
+	// Approximate bytes held
+	long getMemorySize(){
+		long size = 64 + 24L*m_num_ang;
+		if (m_dx != null) size += 8L*m_dx.length;
+		return size;
+	}
+}
@@ -0,0 +1,174 @@
+import ij.process.*;
+import ij.gui.*;
+import java.awt.*;
+import java.util.*;
+
+// Center of a roi for the radial analysis.
+// Results are cached per roi outline (and per pixel contents for the intensity centroid).
+public class RoiCenter {
+	public static final String[] MODES = {"Area centroid", "Intensity centroid", "Vertex average", "User point"};
+	public static final int AREA = 0, INTENSITY = 1, VERTEX = 2, USER = 3;
+
+	static final int MAX_CACHE = 1024;	// number of cached centers
+
+	int m_mode = VERTEX;
+	double m_x = 0, m_y = 0;			// user point
+
+	// Cache key: copy of the roi outline, size and checksum of the pixels for the
+	// intensity centroid (like SliceCache), so that new snapshots of the same
+	// image hit and edited pixels miss. The rois themselves are not held
+	private static class Key {
+		int type;
+		Rectangle bounds;
+		float[] xs, ys;
+		int mode;
+		int width, height;
+		long checksum;
+		int hash;
+
+		Key(Roi roi, int mode, RayProfiler profiler){
+			FloatPolygon pol = roi.getFloatPolygon();
+			this.type = roi.getType();
+			this.bounds = roi.getBounds();
+			this.xs = Arrays.copyOf(pol.xpoints, pol.npoints);
+			this.ys = Arrays.copyOf(pol.ypoints, pol.npoints);
+			this.mode = mode;
+			if (profiler != null){
+				this.width = profiler.m_width;
+				this.height = profiler.m_height;
+				this.checksum = profiler.getChecksum();
+			}
+			hash = ((Arrays.hashCode(xs)*31 + Arrays.hashCode(ys))*31 + bounds.hashCode())*7 + type*4 + mode
+					+ Objects.hash(width, height, checksum);
+		}
+
+		public boolean equals(Object obj){
+			if (!(obj instanceof Key)) return false;
+			Key k = (Key)obj;
+			if (hash != k.hash || type != k.type || mode != k.mode || !bounds.equals(k.bounds)) return false;
+			if (width != k.width || height != k.height || checksum != k.checksum) return false;
+			return Arrays.equals(xs, k.xs) && Arrays.equals(ys, k.ys);
+		}
+
+		public int hashCode(){
+			return hash;
+		}
+	}
+
+	Map<Key, double[]> m_cache = new LinkedHashMap<Key, double[]>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Key, double[]> eldest){
+			return size() > MAX_CACHE;
+		}
+	};
+
+	public void setMode(String mode){
+		int idx = Arrays.asList(MODES).indexOf(mode);
+		if (idx < 0)
+			throw new IllegalArgumentException("Unknown center mode: " + mode);
+		m_mode = idx;
+	}
+
+	public int getMode(){
+		return m_mode;
+	}
+
+	public void setPoint(double x, double y){
+		m_x = x;
+		m_y = y;
+	}
+
+	// Center of roi; profiler supplies the pixels for the intensity centroid
+	public double[] getCenter(Roi roi, RayProfiler profiler){
+		if (m_mode == USER)
+			return new double[]{m_x, m_y};
+
+		Key key = new Key(roi, m_mode, m_mode == INTENSITY ? profiler : null);
+		synchronized(m_cache){
+			double[] c = m_cache.get(key);
+			if (c != null) return c.clone();
+		}
+
+		double[] c;
+		if (m_mode == INTENSITY){
+			c = getIntensityCentroid(roi, profiler);
+		}else if (m_mode == VERTEX){
+			c = getVertexAverage(roi);
+		}else{
+			c = getAreaCentroid(roi);
+		}
+		synchronized(m_cache){
+			m_cache.put(key, c);
+		}
+		return c.clone();
+	}
+
+	// Average of the integer vertices
+	public static double[] getVertexAverage(Roi roi){
+		Polygon poly = roi.getPolygon();
+		double sumx = 0, sumy = 0;
+		for(int i=0; i<poly.npoints; i++){
+			sumx = sumx + poly.xpoints[i];
+			sumy = sumy + poly.ypoints[i];
+		}
+		return new double[]{sumx/poly.npoints, sumy/poly.npoints};
+	}
+
+	// Centroid of the polygon area (shoelace formula)
+	public static double[] getAreaCentroid(Roi roi){
+		FloatPolygon pol = roi.getFloatPolygon();
+		int n = pol.npoints;
+		if (n == 0) return new double[]{0, 0};
+
+		// Relative to the first vertex for precision
+		double x0 = pol.xpoints[0], y0 = pol.ypoints[0];
+		double a = 0, sx = 0, sy = 0;
+		double mx = 0, my = 0;
+		for(int i=0; i<n; i++){
+			int j = i+1 < n ? i+1 : 0;
+			double xi = pol.xpoints[i] - x0, yi = pol.ypoints[i] - y0;
+			double xj = pol.xpoints[j] - x0, yj = pol.ypoints[j] - y0;
+			double cross = xi*yj - xj*yi;
+			a += cross;
+			sx += (xi + xj)*cross;
+			sy += (yi + yj)*cross;
+			mx += xi;
+			my += yi;
+		}
+
+		// Degenerate polygon: fall back to the vertex mean
+		if (Math.abs(a) < 1e-12)
+			return new double[]{x0 + mx/n, y0 + my/n};
+		return new double[]{x0 + sx/(3*a), y0 + sy/(3*a)};
+	}
+
+	// Centroid of the pixel values inside the roi
+	public static double[] getIntensityCentroid(Roi roi, RayProfiler profiler){
+		Rectangle r = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		byte[] mpixels = mask != null ? (byte[])mask.getPixels() : null;
+		float[] pixels = profiler.m_pixels;
+		int width = profiler.m_width, height = profiler.m_height;
+
+		double sum = 0, sx = 0, sy = 0;
+		for(int y=0; y<r.height; y++){
+			int iy = r.y + y;
+			if (iy < 0 || iy >= height) continue;
+			int moff = y*r.width;
+			int off = iy*width;
+			for(int x=0; x<r.width; x++){
+				int ix = r.x + x;
+				if (ix < 0 || ix >= width) continue;
+				if (mpixels != null && mpixels[moff + x] == 0) continue;
+				double v = pixels[off + ix];
+				sum += v;
+				sx += v*(ix + 0.5);
+				sy += v*(iy + 0.5);
+			}
+		}
+
+		// No signal: fall back to the area centroid
+		if (sum == 0 || Double.isNaN(sum))
+			return getAreaCentroid(roi);
+		return new double[]{sx/sum, sy/sum};
+	}
+}
@@ -0,0 +1,144 @@
+import ij.process.*;
+import ij.gui.*;
+import java.awt.*;
+import java.awt.geom.*;
+import java.util.*;
+
+// Pixels of one or more rois as a byte mask over their bounding box
+public class RoiMask {
+	Rectangle m_bounds;
+	byte[] m_mask;						// non-zero inside, row by row over m_bounds
+
+	public RoiMask(Rectangle bounds){
+		m_bounds = new Rectangle(bounds);
+		m_mask = new byte[Math.max(bounds.width*bounds.height, 0)];
+	}
+
+	public RoiMask(Roi roi){
+		this(roi.getBounds());
+		add(roi);
+	}
+
+	// Union of the rois
+	public RoiMask(java.util.List<Roi> rois){
+		this(unionBounds(rois));
+		for(Roi roi : rois){
+			add(roi);
+		}
+	}
+
+	private static Rectangle unionBounds(java.util.List<Roi> rois){
+		Rectangle r = null;
+		for(Roi roi : rois){
+			r = r == null ? roi.getBounds() : r.union(roi.getBounds());
+		}
+		return r != null ? r : new Rectangle();
+	}
+
+	public Rectangle getBounds(){
+		return m_bounds;
+	}
+
+	public boolean contains(int x, int y){
+		if (!m_bounds.contains(x, y)) return false;
+		return m_mask[(y - m_bounds.y)*m_bounds.width + x - m_bounds.x] != 0;
+	}
+
+	// Add the pixels of roi (within the bounds of this mask)
+	public void add(Roi roi){
+		Rectangle r = roi.getBounds();
+		Rectangle c = r.intersection(m_bounds);
+		if (c.isEmpty()) return;
+		ImageProcessor mask = roi.getMask();
+		byte[] mpixels = mask != null ? (byte[])mask.getPixels() : null;
+		for(int y=c.y; y<c.y+c.height; y++){
+			int off = (y - m_bounds.y)*m_bounds.width - m_bounds.x;
+			int moff = (y - r.y)*r.width - r.x;
+			for(int x=c.x; x<c.x+c.width; x++){
+				if (mpixels == null || mpixels[moff + x] != 0)
+					m_mask[off + x] = 1;
+			}
+		}
+	}
+
+	// Add the pixels of other (within the bounds of this mask)
+	public void add(RoiMask other){
+		combine(other, (byte)1);
+	}
+
+	// Clear the pixels of other
+	public void remove(RoiMask other){
+		combine(other, (byte)0);
+	}
+
+	private void combine(RoiMask other, byte value){
+		Rectangle r = other.m_bounds;
+		Rectangle c = r.intersection(m_bounds);
+		if (c.isEmpty()) return;
+		for(int y=c.y; y<c.y+c.height; y++){
+			int off = (y - m_bounds.y)*m_bounds.width - m_bounds.x;
+			int ooff = (y - r.y)*r.width - r.x;
+			for(int x=c.x; x<c.x+c.width; x++){
+				if (other.m_mask[ooff + x] != 0)
+					m_mask[off + x] = value;
+			}
+		}
+	}
+
+	// True if roi has a pixel inside this mask
+	public boolean overlaps(Roi roi){
+		Rectangle r = roi.getBounds();
+		Rectangle c = r.intersection(m_bounds);
+		if (c.isEmpty()) return false;
+		ImageProcessor mask = roi.getMask();
+		byte[] mpixels = mask != null ? (byte[])mask.getPixels() : null;
+		for(int y=c.y; y<c.y+c.height; y++){
+			int off = (y - m_bounds.y)*m_bounds.width - m_bounds.x;
+			int moff = (y - r.y)*r.width - r.x;
+			for(int x=c.x; x<c.x+c.width; x++){
+				if (m_mask[off + x] != 0 && (mpixels == null || mpixels[moff + x] != 0))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	// True if the outline of roi lies on pixel edges, so that its mask is exact
+	public static boolean isPixelAligned(Roi roi){
+		if (!roi.isArea()) return false;
+		int type = roi.getType();
+		if (type == Roi.RECTANGLE && roi.getCornerDiameter() == 0){
+			Rectangle2D.Double b = roi.getFloatBounds();
+			return b.x == Math.floor(b.x) && b.y == Math.floor(b.y)
+					&& b.width == Math.floor(b.width) && b.height == Math.floor(b.height);
+		}
+		if (type == Roi.TRACED_ROI) return true;
+		if (roi instanceof ShapeRoi){
+			// Every segment must be horizontal or vertical between integer points
+			PathIterator it = ((ShapeRoi)roi).getShape().getPathIterator(null);
+			double[] seg = new double[6];
+			double px = 0, py = 0;
+			for(; !it.isDone(); it.next()){
+				int t = it.currentSegment(seg);
+				if (t == PathIterator.SEG_CLOSE) continue;
+				if (t != PathIterator.SEG_MOVETO && t != PathIterator.SEG_LINETO) return false;
+				if (seg[0] != Math.floor(seg[0]) || seg[1] != Math.floor(seg[1])) return false;
+				if (t == PathIterator.SEG_LINETO && seg[0] != px && seg[1] != py) return false;
+				px = seg[0];
+				py = seg[1];
+			}
+			return true;
+		}
+		if (!(roi instanceof PolygonRoi)) return false;
+		FloatPolygon pol = roi.getFloatPolygon();
+		int n = pol.npoints;
+		for(int i=0; i<n; i++){
+			int j = i+1 < n ? i+1 : 0;
+			if (pol.xpoints[i] != Math.floor(pol.xpoints[i]) || pol.ypoints[i] != Math.floor(pol.ypoints[i]))
+				return false;
+			if (pol.xpoints[i] != pol.xpoints[j] && pol.ypoints[i] != pol.ypoints[j])
+				return false;
+		}
+		return true;
+	}
+}
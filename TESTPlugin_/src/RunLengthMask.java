@@ -0,0 +1,232 @@
+import ij.*;
+import ij.process.*;
+import ij.gui.*;
+import ij.plugin.filter.*;
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+
+// Labelled 3D mask stored as horizontal runs, per slice and object label.
+// Rois are only made when a slice is asked for.
+// Binary file (big endian):
+//   header: "RLM3", version (int), width, height, slices (int)
+//   per slice and label: slice, label, number of runs (int), then y, x0, x1 of each run
+//   end: slice 0
+public class RunLengthMask {
+	public static final int MAGIC = 0x524c4d33;	// "RLM3"
+	public static final int VERSION = 1;
+	static final int MAX_SLICES = 1<<20;		// sanity bound for mask files
+
+	int m_width, m_height, m_nslices;
+	ArrayList<TreeMap<Integer, int[]>> m_slices;	// 1-based; label -> runs {y, x0, x1 (exclusive)}, sorted by y and x
+
+	public RunLengthMask(int width, int height, int nslices){
+		m_width = width;
+		m_height = height;
+		m_nslices = nslices;
+		m_slices = new ArrayList<TreeMap<Integer, int[]>>();
+		for(int i=0; i<=nslices; i++){
+			m_slices.add(new TreeMap<Integer, int[]>());
+		}
+	}
+
+	public int getWidth(){
+		return m_width;
+	}
+
+	public int getHeight(){
+		return m_height;
+	}
+
+	public int getSize(){
+		return m_nslices;
+	}
+
+	// Runs of the non-zero pixels of mask, which covers r (clipped to the image)
+	public int[] encode(byte[] mask, Rectangle r){
+		int[] runs = new int[48];
+		int n = 0;
+		int y0 = Math.max(r.y, 0), y1 = Math.min(r.y + r.height, m_height);
+		int x0 = Math.max(r.x, 0), x1 = Math.min(r.x + r.width, m_width);
+		for(int y=y0; y<y1; y++){
+			int moff = (y - r.y)*r.width - r.x;
+			int x = x0;
+			while(x < x1){
+				if (mask[moff + x] == 0){
+					x++;
+					continue;
+				}
+				int start = x;
+				while(x < x1 && mask[moff + x] != 0) x++;
+				if (n + 3 > runs.length) runs = Arrays.copyOf(runs, 2*runs.length);
+				runs[n++] = y;
+				runs[n++] = start;
+				runs[n++] = x;
+			}
+		}
+		return Arrays.copyOf(runs, n);
+	}
+
+	// Set the runs of one object on slice z (replacing earlier ones)
+	public synchronized void setRuns(int z, int label, int[] runs){
+		if (label <= 0)
+			throw new IllegalArgumentException("Labels must be positive: " + label);
+		if (runs.length == 0) m_slices.get(z).remove(label);
+		else m_slices.get(z).put(label, runs);
+	}
+
+	// Set the pixels of one object on slice z from a mask covering r
+	public void setMask(int z, int label, byte[] mask, Rectangle r){
+		setRuns(z, label, encode(mask, r));
+	}
+
+	// Set the pixels of one object on slice z from the union of rois
+	public void setRois(int z, int label, java.util.List<Roi> rois){
+		RoiMask mask = new RoiMask(rois);
+		setMask(z, label, mask.m_mask, mask.getBounds());
+	}
+
+	public synchronized int[] getRuns(int z, int label){
+		int[] runs = m_slices.get(z).get(label);
+		return runs != null ? runs : new int[0];
+	}
+
+	// Labels of the objects, in increasing order
+	public synchronized int[] getLabels(){
+		TreeSet<Integer> labels = new TreeSet<Integer>();
+		for(TreeMap<Integer, int[]> slice : m_slices){
+			labels.addAll(slice.keySet());
+		}
+		int[] res = new int[labels.size()];
+		int i = 0;
+		for(int label : labels) res[i++] = label;
+		return res;
+	}
+
+	// Labels present on slice z
+	public synchronized int[] getLabels(int z){
+		int[] res = new int[m_slices.get(z).size()];
+		int i = 0;
+		for(int label : m_slices.get(z).keySet()) res[i++] = label;
+		return res;
+	}
+
+	// Mask (non-zero inside, width*height) of one object on slice z, or of all objects for label 0
+	public synchronized byte[] getMask(int z, int label){
+		byte[] mask = new byte[m_width*m_height];
+		for(Map.Entry<Integer, int[]> e : m_slices.get(z).entrySet()){
+			if (label != 0 && e.getKey() != label) continue;
+			int[] runs = e.getValue();
+			for(int i=0; i<runs.length; i+=3){
+				Arrays.fill(mask, runs[i]*m_width + runs[i+1], runs[i]*m_width + runs[i+2], (byte)255);
+			}
+		}
+		return mask;
+	}
+
+	// Outline of one object on slice z (all objects for label 0), null if empty
+	public Roi getRoi(int z, int label){
+		byte[] mask = getMask(z, label);
+		boolean any = false;
+		for(int i=0; i<mask.length && !any; i++) any = mask[i] != 0;
+		if (!any) return null;
+		ByteProcessor bp = new ByteProcessor(m_width, m_height, mask);
+		bp.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		return new ThresholdToSelection().convert(bp);
+	}
+
+	// Stack with the label of each voxel (16-bit, or 32-bit beyond 65535 labels)
+	public ImagePlus toLabelImage(String title){
+		int[] labels = getLabels();
+		boolean wide = labels.length > 0 && labels[labels.length-1] > 65535;
+		ImageStack stack = new ImageStack(m_width, m_height);
+		for(int z=1; z<=m_nslices; z++){
+			ImageProcessor ip = wide ? new FloatProcessor(m_width, m_height) : new ShortProcessor(m_width, m_height);
+			synchronized(this){
+				for(Map.Entry<Integer, int[]> e : m_slices.get(z).entrySet()){
+					int[] runs = e.getValue();
+					for(int i=0; i<runs.length; i+=3){
+						int off = runs[i]*m_width;
+						for(int x=runs[i+1]; x<runs[i+2]; x++){
+							ip.setf(off + x, e.getKey());
+						}
+					}
+				}
+			}
+			stack.addSlice(ip);
+		}
+		ImagePlus imp = new ImagePlus(title, stack);
+		imp.setDisplayRange(0, Math.max(1, labels.length > 0 ? labels[labels.length-1] : 1));
+		return imp;
+	}
+
+	public synchronized void write(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1<<16));
+		try{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(m_width);
+			out.writeInt(m_height);
+			out.writeInt(m_nslices);
+			for(int z=1; z<=m_nslices; z++){
+				for(Map.Entry<Integer, int[]> e : m_slices.get(z).entrySet()){
+					int[] runs = e.getValue();
+					out.writeInt(z);
+					out.writeInt(e.getKey());
+					out.writeInt(runs.length/3);
+					for(int v : runs) out.writeInt(v);
+				}
+			}
+			out.writeInt(0);
+		}finally{
+			out.close();
+		}
+	}
+
+	// Reads a mask written by write(); counts, labels and runs are checked
+	// against the header and the length of the file
+	public static RunLengthMask read(String path) throws IOException {
+		File file = new File(path);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16));
+		try{
+			if (in.readInt() != MAGIC) throw new IOException("Not a run-length mask file: " + path);
+			int version = in.readInt();
+			if (version != VERSION) throw new IOException("Unsupported mask file version " + version);
+			int width = in.readInt(), height = in.readInt(), nslices = in.readInt();
+			if (width < 1 || height < 1 || nslices < 1 || nslices > MAX_SLICES)
+				throw new IOException("Bad mask size " + width + "x" + height + "x" + nslices + " in " + path);
+			long left = file.length() - 24;		// bytes between the header and the end mark
+			long max_runs = (long)height*((width+1)/2);
+			RunLengthMask rlm = new RunLengthMask(width, height, nslices);
+			for(int z=in.readInt(); z != 0; z=in.readInt()){
+				left -= 12;
+				if (z < 1 || z > nslices) throw new IOException("Slice out of range: " + z);
+				int label = in.readInt();
+				if (label <= 0) throw new IOException("Bad object label " + label + " on slice " + z);
+				if (rlm.m_slices.get(z).containsKey(label))
+					throw new IOException("Object " + label + " given twice on slice " + z);
+				int n = in.readInt();
+				if (n < 0 || n > max_runs || 12L*n > left)
+					throw new IOException("Bad run count " + n + " of object " + label + " on slice " + z);
+				left -= 12L*n;
+				int[] runs = new int[3*n];
+				for(int i=0; i<runs.length; i++) runs[i] = in.readInt();
+				checkRuns(runs, width, height, z, label);
+				rlm.setRuns(z, label, runs);
+			}
+			return rlm;
+		}finally{
+			in.close();
+		}
+	}
+
+	// Runs must lie in the image, sorted by y and x without overlaps
+	private static void checkRuns(int[] runs, int width, int height, int z, int label) throws IOException {
+		for(int i=0; i<runs.length; i+=3){
+			int y = runs[i], x0 = runs[i+1], x1 = runs[i+2];
+			boolean ok = y >= 0 && y < height && x0 >= 0 && x0 < x1 && x1 <= width;
+			if (ok && i > 0) ok = y > runs[i-3] || (y == runs[i-3] && x0 >= runs[i-1]);
+			if (!ok) throw new IOException("Bad run " + y + ", " + x0 + "-" + x1 + " of object " + label + " on slice " + z);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+import ij.*;
+import ij.io.*;
+import ij.measure.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Timings and counters of one analysis run.
+// Each run passes its own instance to the code it calls, so runs at the same
+// time are recorded apart. NONE records nothing; its calls return at once.
+// Span times are summed over the threads that ran them.
+public class RunStats {
+	// Counters
+	public static final String RAYS = "Rays cast";
+	public static final String EDGES = "Edges tested";
+	public static final String SAMPLES = "Pixels sampled";
+	public static final String PIXELS = "Pixels visited";
+	public static final String MASK_TESTS = "Mask overlap tests";
+	public static final String AREA_TESTS = "Area intersections";
+	public static final String ROIS = "Rois split";
+	public static final String SLICES = "Slices labelled";
+	public static final String CACHE_HITS = "Slice cache hits";
+
+	// Reports chosen in the plugin windows
+	public static final String[] OUTPUTS = {"None", "Table", "Table and JSON"};
+
+	// Stats of runs which are not recorded
+	public static final RunStats NONE = new RunStats("None");
+
+	String m_name;
+	long m_start, m_stop;
+	AtomicInteger m_order = new AtomicInteger();
+	ConcurrentHashMap<String, Entry> m_entries = new ConcurrentHashMap<String, Entry>();
+
+	private static class Entry {
+		int order;
+		boolean span;
+		LongAdder count = new LongAdder();
+		LongAdder nanos = new LongAdder();
+
+		Entry(int order, boolean span){
+			this.order = order;
+			this.span = span;
+		}
+	}
+
+	private RunStats(String name){
+		m_name = name;
+	}
+
+	// Start recording a run
+	public static RunStats start(String name){
+		RunStats stats = new RunStats(name);
+		stats.m_start = System.nanoTime();
+		return stats;
+	}
+
+	// Stats of a run, recorded only if wanted
+	public static RunStats start(String name, boolean record){
+		return record ? start(name) : NONE;
+	}
+
+	// Stop recording
+	public void stop(){
+		if (this != NONE) m_stop = System.nanoTime();
+	}
+
+	public boolean isActive(){
+		return this != NONE;
+	}
+
+	// Add n to a counter
+	public void count(String counter, long n){
+		if (this != NONE) entry(counter, false).count.add(n);
+	}
+
+	// Start time of a span (0 when not recording)
+	public long begin(){
+		return this != NONE ? System.nanoTime() : 0;
+	}
+
+	// End a span started with begin()
+	public void end(String span, long t0){
+		if (this == NONE || t0 == 0) return;
+		Entry e = entry(span, true);
+		e.nanos.add(System.nanoTime() - t0);
+		e.count.increment();
+	}
+
+	private Entry entry(String name, boolean span){
+		Entry e = m_entries.get(name);
+		if (e == null){
+			Entry created = new Entry(m_order.getAndIncrement(), span);
+			e = m_entries.putIfAbsent(name, created);
+			if (e == null) e = created;
+		}
+		return e;
+	}
+
+	private ArrayList<Map.Entry<String, Entry>> sorted(){
+		ArrayList<Map.Entry<String, Entry>> list = new ArrayList<Map.Entry<String, Entry>>(m_entries.entrySet());
+		Collections.sort(list, new Comparator<Map.Entry<String, Entry>>() {
+			public int compare(Map.Entry<String, Entry> a, Map.Entry<String, Entry> b){
+				return Integer.compare(a.getValue().order, b.getValue().order);
+			}
+		});
+		return list;
+	}
+
+	// Wall time of the run in ms
+	public double getElapsed(){
+		long stop = m_stop != 0 ? m_stop : System.nanoTime();
+		return (stop - m_start)/1e6;
+	}
+
+	// Spans (calls and time) and counters, one row each
+	public ResultsTable toTable(){
+		ResultsTable rt = new ResultsTable();
+		rt.incrementCounter();
+		rt.addLabel(m_name);
+		rt.addValue("Count", 1);
+		rt.addValue("Time (ms)", getElapsed());
+		for(Map.Entry<String, Entry> e : sorted()){
+			rt.incrementCounter();
+			rt.addLabel(e.getKey());
+			rt.addValue("Count", e.getValue().count.sum());
+			rt.addValue("Time (ms)", e.getValue().span ? e.getValue().nanos.sum()/1e6 : Double.NaN);
+		}
+		return rt;
+	}
+
+	public void show(){
+		toTable().show("Run statistics");
+	}
+
+	// Stop and report as chosen in OUTPUTS (the JSON file is asked for)
+	public void finish(String output){
+		stop();
+		if (output.equals("None")) return;
+		show();
+		if (output.equals("Table and JSON")){
+			SaveDialog sd = new SaveDialog("Save run statistics", "run_statistics", ".json");
+			if (sd.getFileName() == null) return;
+			try{
+				writeJson(sd.getDirectory() + sd.getFileName());
+			}catch(IOException e){
+				IJ.error("Run statistics", e.getMessage());
+			}
+		}
+	}
+
+	public String toJson(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"run\": ").append(quote(m_name));
+		sb.append(", \"elapsed_ms\": ").append(getElapsed());
+		StringBuilder spans = new StringBuilder(), counters = new StringBuilder();
+		for(Map.Entry<String, Entry> e : sorted()){
+			Entry v = e.getValue();
+			if (v.span){
+				if (spans.length() > 0) spans.append(", ");
+				spans.append(quote(e.getKey())).append(": {\"calls\": ").append(v.count.sum())
+						.append(", \"ms\": ").append(v.nanos.sum()/1e6).append("}");
+			}else{
+				if (counters.length() > 0) counters.append(", ");
+				counters.append(quote(e.getKey())).append(": ").append(v.count.sum());
+			}
+		}
+		sb.append(", \"spans\": {").append(spans).append("}");
+		sb.append(", \"counters\": {").append(counters).append("}}");
+		return sb.toString();
+	}
+
+	private static String quote(String s){
+		return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	public void writeJson(String path) throws IOException {
+		Writer w = new OutputStreamWriter(new FileOutputStream(path), "UTF-8");
+		try{
+			w.write(toJson());
+			w.write("\n");
+		}finally{
+			w.close();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+import ij.*;
+import ij.process.*;
+import java.util.*;
+
+// Thresholded components and traced outline pieces of stack slices, kept
+// between runs so that only slices whose pixels or thresholds changed are
+// labelled or traced again.
+// Entries are evicted least recently used first under a memory budget.
+public class SliceCache {
+	long m_budget;						// bytes
+	long m_size;						// bytes held by the entries
+
+	// Kinds of entries
+	static final int COMPONENTS = 0, ROIS = 1;
+
+	private static class Key {
+		int kind;
+		int image, slice;
+		double low, high;
+		int min_area;
+		int width, height;
+		long checksum;					// pixel contents
+		int hash;
+
+		Key(int kind, int image, int slice, double low, double high, int min_area, int width, int height, long checksum){
+			this.kind = kind;
+			this.image = image;
+			this.slice = slice;
+			this.low = low;
+			this.high = high;
+			this.min_area = min_area;
+			this.width = width;
+			this.height = height;
+			this.checksum = checksum;
+			hash = Objects.hash(kind, image, slice, low, high, min_area, width, height, checksum);
+		}
+
+		public boolean equals(Object obj){
+			if (!(obj instanceof Key)) return false;
+			Key k = (Key)obj;
+			return kind == k.kind && image == k.image && slice == k.slice && low == k.low && high == k.high
+					&& min_area == k.min_area && width == k.width && height == k.height && checksum == k.checksum;
+		}
+
+		public int hashCode(){
+			return hash;
+		}
+	}
+
+	private static class Entry {
+		Object value;
+		long size;
+
+		Entry(Object value, long size){
+			this.value = value;
+			this.size = size;
+		}
+	}
+
+	private LinkedHashMap<Key, Entry> m_map = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	// Budget of an eighth of the heap, up to 256 MB
+	public SliceCache(){
+		this(Math.min(256L << 20, Runtime.getRuntime().maxMemory()/8));
+	}
+
+	public SliceCache(long budget){
+		m_budget = budget;
+	}
+
+	// Components of slice z (1-based), labelled only if not cached
+	public SliceComponents getComponents(ImageStack stack, int image, int z, double low, double high, int min_area, RunStats stats){
+		ImageProcessor ip = stack.getProcessor(z);
+		Key key = new Key(COMPONENTS, image, z, low, high, min_area, stack.getWidth(), stack.getHeight(), checksum(ip.getPixels()));
+		SliceComponents sc = (SliceComponents)get(key, stats);
+		if (sc != null) return sc;
+
+		sc = SliceComponents.threshold(ip, low, high, min_area, stats);
+		put(key, sc, sc.getMemorySize());
+		return sc;
+	}
+
+	// Outline pieces of slice z (1-based), traced only if not cached
+	public SliceRois getRois(ImageStack stack, int image, int z, double low, double high, RunStats stats){
+		ImageProcessor ip = stack.getProcessor(z);
+		Key key = new Key(ROIS, image, z, low, high, 0, stack.getWidth(), stack.getHeight(), checksum(ip.getPixels()));
+		SliceRois sr = (SliceRois)get(key, stats);
+		if (sr != null) return sr;
+
+		sr = SliceRois.trace(ip, low, high, stats);
+		put(key, sr, sr.getMemorySize());
+		return sr;
+	}
+
+	private synchronized Object get(Key key, RunStats stats){
+		Entry e = m_map.get(key);
+		if (e == null) return null;
+		stats.count(RunStats.CACHE_HITS, 1);
+		return e.value;
+	}
+
+	private synchronized void put(Key key, Object value, long size){
+		Entry old = m_map.put(key, new Entry(value, size));
+		if (old != null) m_size -= old.size;
+		m_size += size;
+		evict();
+	}
+
+	private void evict(){
+		Iterator<Entry> it = m_map.values().iterator();
+		while(m_size > m_budget && it.hasNext()){
+			m_size -= it.next().size;
+			it.remove();
+		}
+	}
+
+	public synchronized void clear(){
+		m_map.clear();
+		m_size = 0;
+	}
+
+	public synchronized int getCount(){
+		return m_map.size();
+	}
+
+	public synchronized long getSize(){
+		return m_size;
+	}
+
+	// 64-bit hash of the pixel array contents; pixels are packed into longs
+	// and mixed in one pass (murmur3 style), so edits are not mistaken for
+	// cached slices the way 32-bit hashes can be
+	public static long checksum(Object pixels){
+		long h = 0x243f6a8885a308d3L;
+		int n;
+		if (pixels instanceof byte[]){
+			byte[] p = (byte[])pixels;
+			n = p.length;
+			int i = 0;
+			for(; i+8<=n; i+=8){
+				h = mix(h, (p[i] & 0xffL) | (p[i+1] & 0xffL) << 8 | (p[i+2] & 0xffL) << 16 | (p[i+3] & 0xffL) << 24
+						| (p[i+4] & 0xffL) << 32 | (p[i+5] & 0xffL) << 40 | (p[i+6] & 0xffL) << 48 | (p[i+7] & 0xffL) << 56);
+			}
+			for(; i<n; i++) h = mix(h, p[i] & 0xffL);
+		}else if (pixels instanceof short[]){
+			short[] p = (short[])pixels;
+			n = p.length;
+			int i = 0;
+			for(; i+4<=n; i+=4){
+				h = mix(h, (p[i] & 0xffffL) | (p[i+1] & 0xffffL) << 16 | (p[i+2] & 0xffffL) << 32 | (p[i+3] & 0xffffL) << 48);
+			}
+			for(; i<n; i++) h = mix(h, p[i] & 0xffffL);
+		}else if (pixels instanceof float[]){
+			float[] p = (float[])pixels;
+			n = p.length;
+			int i = 0;
+			for(; i+2<=n; i+=2){
+				h = mix(h, (Float.floatToRawIntBits(p[i]) & 0xffffffffL) | (long)Float.floatToRawIntBits(p[i+1]) << 32);
+			}
+			if (i < n) h = mix(h, Float.floatToRawIntBits(p[i]) & 0xffffffffL);
+		}else if (pixels instanceof int[]){
+			int[] p = (int[])pixels;
+			n = p.length;
+			int i = 0;
+			for(; i+2<=n; i+=2){
+				h = mix(h, (p[i] & 0xffffffffL) | (long)p[i+1] << 32);
+			}
+			if (i < n) h = mix(h, p[i] & 0xffffffffL);
+		}else{
+			return System.identityHashCode(pixels);
+		}
+
+		// Final avalanche with the length
+		h ^= n;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static long mix(long h, long v){
+		v *= 0x87c37b91114253d5L;
+		v = Long.rotateLeft(v, 31);
+		v *= 0x4cf5ad432745937fL;
+		h ^= v;
+		h = Long.rotateLeft(h, 27)*5 + 0x52dce729;
+		return h;
+	}
+}
@@ -0,0 +1,247 @@
+import ij.process.*;
+import ij.gui.*;
+import java.awt.*;
+
+// 8-connected components of the thresholded pixels of one slice.
+// Components are stored as horizontal runs sorted by row and x.
+public class SliceComponents {
+	int m_width, m_height;
+	int m_nruns;
+	int[] m_run_y, m_run_x0, m_run_x1;	// run covers x0..x1-1 on row y
+	int[] m_run_comp;					// component of each run
+	int[] m_row_start;					// runs of row y: m_row_start[y]..m_row_start[y+1]-1
+	int m_ncomp;
+	int[] m_comp_area;					// pixels of each component
+	int[] m_comp_bounds;				// minx, miny, maxx, maxy of each component
+
+	private SliceComponents(int width, int height){
+		m_width = width;
+		m_height = height;
+	}
+
+	public int getComponentCount(){
+		return m_ncomp;
+	}
+
+	public int getArea(int comp){
+		return m_comp_area[comp];
+	}
+
+	// Approximate bytes held by the runs and components
+	public long getMemorySize(){
+		return 64 + 4L*(m_run_y.length + m_run_x0.length + m_run_x1.length + m_run_comp.length
+				+ m_row_start.length + m_comp_area.length + m_comp_bounds.length);
+	}
+
+	public Rectangle getBounds(int comp){
+		int[] b = m_comp_bounds;
+		return new Rectangle(b[4*comp], b[4*comp+1], b[4*comp+2]-b[4*comp]+1, b[4*comp+3]-b[4*comp+1]+1);
+	}
+
+	private static int find(int[] parent, int i){
+		while(parent[i] != i){
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	// Components of pixels with low <= value <= high, larger than min_area pixels
+	public static SliceComponents threshold(ImageProcessor ip, double low, double high, int min_area, RunStats stats){
+		int width = ip.getWidth(), height = ip.getHeight();
+		SliceComponents sc = new SliceComponents(width, height);
+		stats.count(RunStats.SLICES, 1);
+		stats.count(RunStats.PIXELS, (long)width*height);
+
+		// Runs and their union-find over 8-connectivity with the previous row
+		int cap = 256;
+		int[] ry = new int[cap], rx0 = new int[cap], rx1 = new int[cap], parent = new int[cap];
+		int n = 0;
+		int prev_start = 0, prev_end = 0;
+		int[] row_start = new int[height+1];
+		for(int y=0; y<height; y++){
+			row_start[y] = n;
+			int off = y*width;
+			int x = 0;
+			while(x < width){
+				float v = ip.getf(off + x);
+				if (!(v >= low && v <= high)){
+					x++;
+					continue;
+				}
+				int x0 = x;
+				while(x < width){
+					v = ip.getf(off + x);
+					if (!(v >= low && v <= high)) break;
+					x++;
+				}
+				if (n == cap){
+					cap *= 2;
+					ry = java.util.Arrays.copyOf(ry, cap);
+					rx0 = java.util.Arrays.copyOf(rx0, cap);
+					rx1 = java.util.Arrays.copyOf(rx1, cap);
+					parent = java.util.Arrays.copyOf(parent, cap);
+				}
+				ry[n] = y;
+				rx0[n] = x0;
+				rx1[n] = x;
+				parent[n] = n;
+
+				// Touching runs of the previous row (diagonals included)
+				for(int k=prev_start; k<prev_end; k++){
+					if (rx0[k] > x) break;
+					if (rx1[k] >= x0){
+						int a = find(parent, k), b = find(parent, n);
+						if (a != b){
+							if (a < b) parent[b] = a; else parent[a] = b;
+						}
+					}
+				}
+				n++;
+			}
+			prev_start = row_start[y];
+			prev_end = n;
+		}
+		row_start[height] = n;
+
+		// Number components in scan order and measure them
+		int[] label = new int[n];
+		int[] area = new int[Math.max(n, 1)];
+		int ncomp = 0;
+		for(int i=0; i<n; i++){
+			int r = find(parent, i);
+			if (r == i){
+				label[i] = ncomp++;
+			}else{
+				label[i] = label[r];
+			}
+			area[label[i]] += rx1[i] - rx0[i];
+		}
+
+		// Drop small components
+		int[] remap = new int[ncomp];
+		int nkept = 0;
+		for(int c=0; c<ncomp; c++){
+			remap[c] = area[c] > min_area ? nkept++ : -1;
+		}
+		sc.m_run_y = new int[n];
+		sc.m_run_x0 = new int[n];
+		sc.m_run_x1 = new int[n];
+		sc.m_run_comp = new int[n];
+		sc.m_row_start = new int[height+1];
+		sc.m_comp_area = new int[nkept];
+		sc.m_comp_bounds = new int[4*nkept];
+		for(int c=0; c<nkept; c++){
+			sc.m_comp_bounds[4*c] = Integer.MAX_VALUE;
+			sc.m_comp_bounds[4*c+1] = Integer.MAX_VALUE;
+			sc.m_comp_bounds[4*c+2] = -1;
+			sc.m_comp_bounds[4*c+3] = -1;
+		}
+		int m = 0;
+		for(int y=0; y<height; y++){
+			sc.m_row_start[y] = m;
+			for(int i=row_start[y]; i<row_start[y+1]; i++){
+				int c = remap[label[i]];
+				if (c < 0) continue;
+				sc.m_run_y[m] = ry[i];
+				sc.m_run_x0[m] = rx0[i];
+				sc.m_run_x1[m] = rx1[i];
+				sc.m_run_comp[m] = c;
+				sc.m_comp_area[c] += rx1[i] - rx0[i];
+				int[] b = sc.m_comp_bounds;
+				if (rx0[i] < b[4*c]) b[4*c] = rx0[i];
+				if (y < b[4*c+1]) b[4*c+1] = y;
+				if (rx1[i]-1 > b[4*c+2]) b[4*c+2] = rx1[i]-1;
+				if (y > b[4*c+3]) b[4*c+3] = y;
+				m++;
+			}
+		}
+		sc.m_row_start[height] = m;
+		sc.m_nruns = m;
+		sc.m_ncomp = nkept;
+		return sc;
+	}
+
+	// Components having at least one pixel inside roi (flags indexed by component)
+	public boolean[] getComponentsInside(Roi roi){
+		boolean[] inside = new boolean[m_ncomp];
+		Rectangle r = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		byte[] mpixels = mask != null ? (byte[])mask.getPixels() : null;
+		int y0 = Math.max(r.y, 0), y1 = Math.min(r.y + r.height, m_height);
+		for(int y=y0; y<y1; y++){
+			for(int i=m_row_start[y]; i<m_row_start[y+1]; i++){
+				int c = m_run_comp[i];
+				if (inside[c]) continue;
+				int x0 = Math.max(m_run_x0[i], r.x), x1 = Math.min(m_run_x1[i], r.x + r.width);
+				if (mpixels == null){
+					if (x0 < x1) inside[c] = true;
+					continue;
+				}
+				int moff = (y - r.y)*r.width - r.x;
+				for(int x=x0; x<x1; x++){
+					if (mpixels[moff + x] != 0){
+						inside[c] = true;
+						break;
+					}
+				}
+			}
+		}
+		return inside;
+	}
+
+	// Calls overlap(ca, cb) for each pair of components of a and b sharing a pixel
+	// (pairs may be reported more than once)
+	public static void forEachOverlap(SliceComponents a, SliceComponents b, OverlapListener overlap){
+		int height = Math.min(a.m_height, b.m_height);
+		for(int y=0; y<height; y++){
+			int i = a.m_row_start[y], ie = a.m_row_start[y+1];
+			int j = b.m_row_start[y], je = b.m_row_start[y+1];
+			while(i < ie && j < je){
+				if (a.m_run_x1[i] <= b.m_run_x0[j]){
+					i++;
+				}else if (b.m_run_x1[j] <= a.m_run_x0[i]){
+					j++;
+				}else{
+					overlap.overlap(a.m_run_comp[i], b.m_run_comp[j]);
+					if (a.m_run_x1[i] < b.m_run_x1[j]) i++; else j++;
+				}
+			}
+		}
+	}
+
+	public interface OverlapListener {
+		void overlap(int comp_a, int comp_b);
+	}
+
+	// Runs {y, x0, x1} of the selected components, sorted by y and x
+	public int[] getRuns(boolean[] selected){
+		int n = 0;
+		for(int i=0; i<m_nruns; i++){
+			if (selected[m_run_comp[i]]) n++;
+		}
+		int[] runs = new int[3*n];
+		int k = 0;
+		for(int i=0; i<m_nruns; i++){
+			if (!selected[m_run_comp[i]]) continue;
+			runs[k++] = m_run_y[i];
+			runs[k++] = m_run_x0[i];
+			runs[k++] = m_run_x1[i];
+		}
+		return runs;
+	}
+
+	// Binary mask (255 inside) of the selected components
+	public ByteProcessor getMask(boolean[] selected){
+		ByteProcessor bp = new ByteProcessor(m_width, m_height);
+		byte[] pixels = (byte[])bp.getPixels();
+		for(int i=0; i<m_nruns; i++){
+			if (!selected[m_run_comp[i]]) continue;
+			int off = m_run_y[i]*m_width;
+			for(int x=m_run_x0[i]; x<m_run_x1[i]; x++){
+				pixels[off + x] = (byte)255;
+			}
+		}
+		return bp;
+	}
+}
@@ -0,0 +1,56 @@
+import ij.gui.*;
+import ij.process.*;
+import ij.plugin.filter.*;
+import java.awt.*;
+
+// Pieces of the threshold outline of one slice (ThresholdToSelection split
+// by ShapeRoi.getRois), with their bounds and pixel counts
+public class SliceRois {
+	Roi[] m_rois;
+	Rectangle[] m_bounds;
+	int[] m_areas;						// pixels of each piece, -1 until counted
+
+	public SliceRois(Roi[] rois){
+		m_rois = rois;
+		m_bounds = new Rectangle[rois.length];
+		m_areas = new int[rois.length];
+		for(int i=0; i<rois.length; i++){
+			m_bounds[i] = rois[i].getBounds();
+			m_areas[i] = -1;
+		}
+	}
+
+	// Pieces of the pixels of ip within [low, high]
+	public static SliceRois trace(ImageProcessor ip, double low, double high, RunStats stats){
+		if (low == ImageProcessor.NO_THRESHOLD) return new SliceRois(new Roi[0]);
+		ip.setThreshold(low, high, ImageProcessor.NO_LUT_UPDATE);
+
+		long t = stats.begin();
+		Roi throi = new ThresholdToSelection().convert(ip);
+		stats.end("Thresholding", t);
+		if (null == throi) return new SliceRois(new Roi[0]);
+		t = stats.begin();
+		Roi[] rois = new ShapeRoi(throi).getRois();
+		stats.end("ROI splitting", t);
+		stats.count(RunStats.ROIS, rois.length);
+		return new SliceRois(rois);
+	}
+
+	// Approximate bytes held (the outline vertices dominate)
+	public long getMemorySize(){
+		long size = 64 + 24L*m_rois.length;
+		for(Roi roi : m_rois){
+			size += 96;
+			if (roi instanceof PolygonRoi) size += 8L*((PolygonRoi)roi).getNCoordinates();
+		}
+		return size;
+	}
+
+	public int size(){
+		return m_rois.length;
+	}
+
+	public Roi getRoi(int i){
+		return m_rois[i];
+	}
+}
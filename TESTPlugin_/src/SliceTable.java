@@ -0,0 +1,50 @@
+import ij.*;
+
+// Outline pieces of the slices of one stack during a run, traced once when
+// first needed and shared by the objects grown at the same time.
+public class SliceTable {
+	ImageStack m_stack;
+	SliceCache m_cache;					// pieces kept between runs (may be null)
+	int m_image;						// image ID for the cache
+	double m_low, m_high;				// thresholds
+	RunStats m_stats;					// of the run
+
+	SliceRois[] m_slices;				// 1-based, null until traced
+	Object[] m_locks;					// one per slice
+	int m_traced;
+
+	public SliceTable(ImageStack stack, SliceCache cache, int image, double low, double high, RunStats stats){
+		m_stack = stack;
+		m_cache = cache;
+		m_image = image;
+		m_low = low;
+		m_high = high;
+		m_stats = stats;
+		int n = stack.getSize();
+		m_slices = new SliceRois[n+1];
+		m_locks = new Object[n+1];
+		for(int i=0; i<=n; i++){
+			m_locks[i] = new Object();
+		}
+	}
+
+	public int size(){
+		return m_stack.getSize();
+	}
+
+	// Pieces of slice n (1-based); other threads asking for it wait for the first
+	public SliceRois get(int n){
+		synchronized(m_locks[n]){
+			if (m_slices[n] == null){
+				m_slices[n] = m_cache != null ? m_cache.getRois(m_stack, m_image, n, m_low, m_high, m_stats)
+						: SliceRois.trace(m_stack.getProcessor(n), m_low, m_high, m_stats);
+				IJ.showProgress(tracedOne(), size());
+			}
+			return m_slices[n];
+		}
+	}
+
+	private synchronized int tracedOne(){
+		return ++m_traced;
+	}
+}
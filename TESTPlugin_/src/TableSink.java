@@ -0,0 +1,36 @@
+import ij.measure.*;
+
+// Collects profiles into a ResultsTable, one row per roi
+public class TableSink implements ProfileSink {
+	ResultsTable m_rt;
+	String m_title;						// shown on close if not null
+
+	public TableSink(String title){
+		m_rt = new ResultsTable();
+		m_title = title;
+	}
+
+	public ResultsTable getTable(){
+		return m_rt;
+	}
+
+	public void begin(int num_ang){
+		// Do nothing
+	}
+
+	public synchronized void add(String image, String roi, double cx, double cy, double[] profile){
+		m_rt.incrementCounter();
+		m_rt.addValue("Image", image);
+		m_rt.addValue("ROI", roi);
+		m_rt.addValue("X", cx);
+		m_rt.addValue("Y", cy);
+		for(int i=0; i<profile.length; i++){
+			m_rt.addValue("A" + i, profile[i]);
+		}
+	}
+
+	public void close(){
+		if (m_title != null)
+			m_rt.show(m_title);
+	}
+}
@@ -1,6 +1,8 @@
 import ij.*;
 import ij.process.*;
 import ij.gui.*;
+import ij.measure.*;
+import ij.io.*;
 import java.awt.*;
 import java.awt.List;
 import java.awt.geom.*;
@@ -9,28 +11,95 @@ import ij.plugin.frame.*;
 import ij.plugin.filter.*;
 import java.awt.event.*;
 import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
 
 public class Volume_Analysis implements PlugIn, ActionListener, KeyListener{
 	// Member variables
 	Button m_bt_debug;					// button for debugging
 	Button m_bt_run;					// run button
 	Button m_bt_calc;					// calculate volume
+	Button m_bt_cancel;					// cancel the running analysis
 	Button m_bt_set, m_bt_reset;		// set/reset button
 	TextField m_txt_low, m_txt_high;	// higher/lower thresholds
 	TextField m_min_area;				// ignore area less than this
 	TextField m_z_px;					// z-pixels
+	String m_z_px_user = "1";			// z-pixels typed in, while a calibrated image shows its own
+	Choice m_cho_engine;				// Segmentation engine
+	Choice m_cho_seeds;					// Seeds of the objects
+	Choice m_cho_output;				// Where the objects go
+	Choice m_cho_time;					// Current frame or all frames of a time-lapse
+	Choice m_cho_stats;					// Run statistics output
+	Choice m_cho_volume;				// Objects measured by Calculate volume
+	SliceCache m_slice_cache = new SliceCache();	// labelled and traced slices kept between runs
+	BackgroundRunner m_runner;			// runs the analyses off the event thread
+	RunLengthMask m_result;				// objects of the last run, unless they went to the roi manager
+	int m_result_image;					// ID of the image of m_result
+	boolean m_result_tagged;			// m_result has more than one object
+
+	static final String OBJECT_TAG = "-obj";	// label suffix of the object ID
 	
 	// Get area of roi
-	private int getRoiArea(Roi roi){
+	private static int getRoiArea(Roi roi, RunStats stats){
+		if (roi.isLine()) return roi.getContainedPoints().length;
+		Rectangle r = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		if (mask == null) return r.width*r.height;
+		byte[] mpixels = (byte[])mask.getPixels();
+		stats.count(RunStats.PIXELS, mpixels.length);
 		int area = 0;
-		for (Point p : roi.getContainedPoints()) {
-			area++; 
+		for(int i=0; i<mpixels.length; i++){
+			if (mpixels[i] != 0) area++;
 		}
 		return area;
 	}
+
+	// Area of roi and whether one of its pixels is within (low, high),
+	// in one pass over the roi mask. Returns {area, inside ? 1 : 0}
+	private static int[] measureRoi(Roi roi, ImageProcessor ip, double low, double high, RunStats stats){
+		if (roi.isLine()) roi = Roi.convertLineToArea(roi);
+		Rectangle r = roi.getBounds();
+		ImageProcessor mask = roi.getMask();
+		byte[] mpixels = mask != null ? (byte[])mask.getPixels() : null;
+		int width = ip.getWidth(), height = ip.getHeight();
+		stats.count(RunStats.PIXELS, (long)r.width*r.height);
+		int area = 0;
+		boolean isinside = false;
+		for(int y=0; y<r.height; y++){
+			int iy = r.y + y;
+			boolean inrow = iy >= 0 && iy < height;
+			int moff = y*r.width;
+			int off = iy*width;
+			for(int x=0; x<r.width; x++){
+				if (mpixels != null && mpixels[moff + x] == 0) continue;
+				area++;
+				if (isinside || !inrow) continue;
+				int ix = r.x + x;
+				if (ix < 0 || ix >= width) continue;
+				float val = ip.getf(off + ix);
+				if (low < val && val < high) isinside = true;
+			}
+		}
+		return new int[]{area, isinside ? 1 : 0};
+	}
 	
-	// Check overlapping between Roi1 and Roi2
-	private boolean checkOverlapping(Roi roi1, Roi roi2){
+	// Check overlapping between Roi1 and Roi2; mask1 is the pixel mask of
+	// Roi1 (null if Roi1 is not an area)
+	private boolean checkOverlapping(Roi roi1, RoiMask mask1, Roi roi2, RunStats stats){
+		// Bounding boxes
+		if (!roi1.getBounds().intersects(roi2.getBounds())) return false;
+
+		// Pixel masks, exact for rois on pixel edges
+		if (mask1 != null && roi2.isArea()){
+			if (mask1.overlaps(roi2)) return true;
+			if (RoiMask.isPixelAligned(roi1) && RoiMask.isPixelAligned(roi2)) return false;
+		}
+		return checkOverlappingArea(roi1, roi2, stats);
+	}
+
+	// Check overlapping by polygon geometry
+	private boolean checkOverlappingArea(Roi roi1, Roi roi2, RunStats stats){
+		stats.count(RunStats.AREA_TESTS, 1);
 		Area area = new Area(roi1.getPolygon());
 		area.intersect(new Area(roi2.getPolygon()));
 		return !area.isEmpty();
@@ -43,180 +112,661 @@ public class Volume_Analysis implements PlugIn, ActionListener, KeyListener{
 		int low = Integer.parseInt(m_txt_low.getText());
 		int high = Integer.parseInt(m_txt_high.getText());
 
-		boolean isinside = false;
-		for (Point p : roi.getContainedPoints()) {
-			float val = ip.getf(p.x, p.y);
-			if(low < val && val < high)	isinside = true;
-		}
-		return isinside;
+		return measureRoi(roi, ip, low, high, RunStats.NONE)[1] != 0;
 	}
 
-	// Combine Rois (returns null if rois are empty)
-	private Roi combineRoi(ArrayList<Roi> rois){
-		if(rois.size() > 1){
-	    	ShapeRoi roi1 = new ShapeRoi(rois.get(0));
-	    	for(int i=1; i<rois.size(); i++){
-	    		ShapeRoi roi2 = new ShapeRoi(rois.get(i));
-	    		roi1 = roi1.or(roi2);
-	    	}
-	    	return roi1;			
-		}else{
-			return null;
+	// Run tasks on up to one thread per processor; a cancellation or an error
+	// of a task is rethrown here
+	private static void runAll(ArrayList<Runnable> tasks){
+		int nthreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), tasks.size()));
+		ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+		try{
+			ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+			for(Runnable task : tasks){
+				futures.add(pool.submit(task));
+			}
+			for(Future<?> f : futures){
+				f.get();
+			}
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new CancellationException();
+		}catch(ExecutionException e){
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}finally{
+			pool.shutdownNow();
 		}
 	}
-	
-	private void findNextRois(ArrayList<ArrayList<Roi>> roimap, int cur_slice, int step){
-        ImagePlus imp = IJ.getImage();
-        if (null == imp) return;
-		ImageProcessor ip = imp.getProcessor();
 
-        // obtain rois at current slice
-        ArrayList<Roi> cur_rois = roimap.get(cur_slice);
-        
-		// Go to the next slice
-    	int next_slice = cur_slice + step;
-        imp.setPosition(next_slice);
-
-		// Select all
-        ThresholdToSelection th = new ThresholdToSelection();
-        Roi throi = th.convert(ip);
-        if (null == throi) return;
-        ShapeRoi shroi = new ShapeRoi(throi);
-        Roi[] all_rois = shroi.getRois();
-
-        ArrayList<Roi> next_rois = new ArrayList<Roi>(roimap.get(next_slice));
+	// Add the pieces of next overlapping cur_rois to next_rois.
+	// Returns true if a piece was added
+	private boolean selectOverlapping(ArrayList<Roi> cur_rois, SliceRois next, boolean[] selected, ArrayList<Roi> next_rois, int min_area, RunStats stats){
+        // Mask of current rois; rois off pixel edges are checked by geometry
+        ArrayList<Roi> masked = new ArrayList<Roi>();
+        ArrayList<Roi> unaligned = new ArrayList<Roi>();
+        for(Roi roi : cur_rois){
+        	if (roi.isArea()) masked.add(roi);
+        	if (!RoiMask.isPixelAligned(roi)) unaligned.add(roi);
+        }
+        RoiMask cur_mask = new RoiMask(masked);
+        RoiMask[] unaligned_masks = new RoiMask[unaligned.size()];
+        for(int j=0; j<unaligned_masks.length; j++){
+        	if (unaligned.get(j).isArea()) unaligned_masks[j] = new RoiMask(unaligned.get(j));
+        }
+
         // Find overlapped rois with current rois
-		int min_area = Integer.parseInt(m_min_area.getText());
-        for(int i=0; i<all_rois.length; i++){
+        long t = stats.begin();
+        boolean added = false;
+        for(int i=0; i<next.size(); i++){
+        	if (selected[i]) continue;
+        	stats.count(RunStats.MASK_TESTS, 1);
+
+        	// Pickup roi overlapped with current roi
+        	Roi roi = next.getRoi(i);
+        	boolean overlap = cur_mask.overlaps(roi);
+        	for(int j=0; !overlap && j<unaligned.size(); j++){
+        		overlap = checkOverlapping(unaligned.get(j), unaligned_masks[j], roi, stats);
+        	}
+        	if (!overlap) continue;
+
         	// Pickup higher than minimum area roi
-        	if(getRoiArea(all_rois[i]) > min_area){
-        		// Pickup roi overlapped with current roi
-        		for(int j=0; j<cur_rois.size(); j++){
-	        		if(checkOverlapping(cur_rois.get(j), all_rois[i])){
-	        			next_rois.add(all_rois[i]);
-	        		}
+        	if (next.m_areas[i] < 0) next.m_areas[i] = getRoiArea(roi, stats);
+        	if (next.m_areas[i] > min_area){
+        		selected[i] = true;
+        		next_rois.add(roi);
+        		added = true;
+        	}
+        }
+        stats.end("Overlap testing", t);
+        return added;
+	}
+	
+	// Grow one object from seed on slice z with the roi geometry pipeline.
+	// Each slice is traced once; a slice is revisited only when the selection
+	// of a neighbour grew, until nothing changes. Point and line seeds select
+	// the pieces under their points. Returns the selected pieces of each slice
+	// (null for slices never reached).
+	private boolean[][] growObject(SliceTable table, Roi seed, int z, int min_area, CancelFlag flag, RunStats stats){
+        int Num = table.size();
+        ArrayList<ArrayList<Roi>> roimap = new ArrayList<ArrayList<Roi>>();
+        for(int i=0; i<=Num; i++){
+        	roimap.add(new ArrayList<Roi>());
+        }
+        boolean[][] selected = new boolean[Num+1][];
+        if (seed.isArea()){
+        	roimap.get(z).add(seed);
+        }else{
+        	SliceRois pieces = table.get(z);
+        	selected[z] = new boolean[pieces.size()];
+        	for(Point p : seed.getContainedPoints()){
+        		for(int i=0; i<pieces.size(); i++){
+        			if (selected[z][i] || !pieces.m_bounds[i].contains(p) || !pieces.getRoi(i).contains(p.x, p.y)) continue;
+        			if (pieces.m_areas[i] < 0) pieces.m_areas[i] = getRoiArea(pieces.getRoi(i), stats);
+        			if (pieces.m_areas[i] > min_area){
+        				selected[z][i] = true;
+        				roimap.get(z).add(pieces.getRoi(i));
+        			}
         		}
         	}
         }
 
-        // Find +/- Roi
-        /*
-        ArrayList<Roi> pos_roi = new ArrayList<Roi>();
-        ArrayList<Roi> neg_roi = new ArrayList<Roi>();
-        for(int i=0; i<next_rois.size(); i++){
-        	Roi next_roi = next_rois.get(i);
-        	if(checkInside(next_roi, ip)){
-        		pos_roi.add(next_roi);
-        	}else{
-        		neg_roi.add(next_roi);
+        // Slices whose selection grew
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        boolean[] queued = new boolean[Num+1];
+        queue.add(z);
+        queued[z] = true;
+        while(!queue.isEmpty()){
+        	flag.check();
+        	int s = queue.poll();
+        	queued[s] = false;
+        	for(int n=s-1; n<=s+1; n+=2){
+        		if (n < 1 || n > Num) continue;
+        		SliceRois pieces = table.get(n);
+        		if (selected[n] == null) selected[n] = new boolean[pieces.size()];
+        		if (selectOverlapping(roimap.get(s), pieces, selected[n], roimap.get(n), min_area, stats) && !queued[n]){
+        			queue.add(n);
+        			queued[n] = true;
+        		}
         	}
         }
-        */
+        return selected;
+	}
 
-        // Combine ROIs
-        Roi next_roi = combineRoi(next_rois);
-        if(next_roi != null){
-            next_rois = new ArrayList<Roi>();
-            next_rois.add(next_roi);
-        }
+	// Objects grown from seeds[k] on slice zs[k], all at once over one table of
+	// traced slices. A piece reached from several seeds belongs to the object of
+	// the first one. Slices are traced between low and high, like the voxel engine.
+	// Returns the objects as a mask labelled k+1.
+	private RunLengthMask findObjects(ImagePlus imp, final Roi[] seeds, final int[] zs, int low, int high, final int min_area, final CancelFlag flag, final RunStats stats){
+		final SliceTable table = new SliceTable(imp.getStack(), m_slice_cache, imp.getID(), low, high, stats);
+		final int Num = table.size();
+
+		// Grow the objects
+		final boolean[][][] selected = new boolean[seeds.length][][];
+		ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+		for(int k=0; k<seeds.length; k++){
+			final int obj = k;
+			tasks.add(new Runnable() {
+				public void run(){
+					selected[obj] = growObject(table, seeds[obj], zs[obj], min_area, flag, stats);
+				}
+			});
+		}
+		runAll(tasks);
+
+		// Owner of each piece: the first object reaching it
+		final int[][] owner = new int[Num+1][];
+		for(int k=0; k<seeds.length; k++){
+			for(int n=1; n<=Num; n++){
+				boolean[] sel = selected[k][n];
+				if (sel == null) continue;
+				if (owner[n] == null){
+					owner[n] = new int[sel.length];
+					Arrays.fill(owner[n], -1);
+				}
+				for(int i=0; i<sel.length; i++){
+					if (sel[i] && owner[n][i] < 0) owner[n][i] = k;
+				}
+			}
+		}
 
-        roimap.set(next_slice, next_rois);
+		// Owned pieces of each object, rasterized slice by slice. On a slice the
+		// objects are written lowest first and lose the pixels already taken; an
+		// area seed overlapping a lower object there is dropped
+		final RunLengthMask mask = new RunLengthMask(imp.getWidth(), imp.getHeight(), Num);
+		final Rectangle frame = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+		tasks.clear();
+		for(int n=1; n<=Num; n++){
+			final int slice = n;
+			tasks.add(new Runnable() {
+				public void run(){
+					flag.check();
+					long t = stats.begin();
+					RoiMask taken = seeds.length > 1 ? new RoiMask(frame) : null;
+					for(int k=0; k<seeds.length; k++){
+						ArrayList<Roi> rois = new ArrayList<Roi>();
+						boolean[] sel = selected[k][slice];
+						for(int i=0; sel != null && i<sel.length; i++){
+							if (sel[i] && owner[slice][i] == k) rois.add(table.get(slice).getRoi(i));
+						}
+						if (slice == zs[k] && seeds[k].isArea() && (taken == null || !taken.overlaps(seeds[k])))
+							rois.add(seeds[k]);
+						if (rois.isEmpty()) continue;
+						RoiMask obj = new RoiMask(rois);
+						if (taken != null){
+							obj.remove(taken);
+							taken.add(obj);
+						}
+						mask.setMask(slice, k+1, obj.m_mask, obj.getBounds());
+					}
+					stats.end("Mask output", t);
+				}
+			});
+		}
+		runAll(tasks);
+		return mask;
 	}
-	
-	private void volume_analysis() {
-		ImagePlus imp = IJ.getImage();
-        if (null == imp) return;
-		ImageProcessor ip = imp.getProcessor();
 
-		// Roi manager
-    	RoiManager manager = RoiManager.getInstance();
-    	if (manager == null)
-    		manager = new RoiManager();
+	// Seeds of the objects and their slices: the selection, or all rois of the
+	// roi manager; each point of a point selection is a seed
+	private Roi[] getSeeds(ImagePlus imp, RoiManager manager, boolean from_manager, ArrayList<Integer> zs){
+		ArrayList<Roi> seeds = new ArrayList<Roi>();
+		int cur_slice = imp.getCurrentSlice();
+		if (from_manager){
+			Roi[] rois = manager.getRoisAsArray();
+			for(int i=0; i<rois.length; i++){
+				int z = manager.getSliceNumber(manager.getName(i));
+				if (z < 1) z = rois[i].getPosition();
+				if (z < 1 || z > imp.getStackSize()) z = cur_slice;
+				addSeed(seeds, zs, rois[i], z, imp.getStackSize());
+			}
+		}else if (imp.getRoi() != null){
+			addSeed(seeds, zs, imp.getRoi(), cur_slice, imp.getStackSize());
+		}
+		return seeds.toArray(new Roi[seeds.size()]);
+	}
 
-		// Stack
-        int Num = imp.getStackSize();
-        int cur_slice = imp.getCurrentSlice();
+	private void addSeed(ArrayList<Roi> seeds, ArrayList<Integer> zs, Roi roi, int z, int nslices){
+		if (!(roi instanceof PointRoi) || roi.size() < 2){
+			seeds.add(roi);
+			zs.add(z);
+			return;
+		}
+		PointRoi points = (PointRoi)roi;
+		FloatPolygon fp = points.getFloatPolygon();
+		for(int i=0; i<fp.npoints; i++){
+			int pz = points.getPointPosition(i);
+			seeds.add(new PointRoi(fp.xpoints[i], fp.ypoints[i]));
+			zs.add(pz >= 1 && pz <= nslices ? pz : z);
+		}
+	}
 
-        // Initialize ROI map
-        ArrayList<ArrayList<Roi>> roimap = new ArrayList<ArrayList<Roi>>();
-        for(int i=0; i<=Num; i++){
-        	ArrayList<Roi> roi_arry = new ArrayList<Roi>();
-        	roimap.add(roi_arry);
-        }
+	// Settings of one run, read from the window on the event thread so that
+	// the analyses never touch the widgets
+	static class RunSettings {
+		final int low, high, min_area;
+		final double z_px;
+		final boolean from_manager;			// seeds from the roi manager
+		final boolean track, voxels;		// over frames, voxel label engine
+		final String output, volume, stats_out;
+		final String path;					// output or objects file (null if none)
+
+		RunSettings(Volume_Analysis win, int low, int high, String path){
+			this.low = low;
+			this.high = high;
+			this.path = path;
+			min_area = Integer.parseInt(win.m_min_area.getText());
+			z_px = Double.parseDouble(win.m_z_px.getText());
+			from_manager = win.m_cho_seeds.getSelectedItem().equals("Roi Manager");
+			track = win.m_cho_time.getSelectedItem().equals("Track over frames");
+			voxels = win.m_cho_engine.getSelectedItem().equals("Voxel labels");
+			output = win.m_cho_output.getSelectedItem();
+			volume = win.m_cho_volume.getSelectedItem();
+			stats_out = win.m_cho_stats.getSelectedItem();
+		}
+	}
 
-        // Add current roi to ROI map
-        ArrayList<Roi> curroi = new ArrayList<Roi>();
-        curroi.add(imp.getRoi());
-        roimap.set(cur_slice, curroi);
-        
-        // Current slice to top
-        for(int i=cur_slice; i<Num; i++){
-        	findNextRois(roimap, i, 1);
+	private void volume_analysis(ImagePlus imp, RoiManager manager, Roi[] seeds, int[] zs, RunSettings set, CancelFlag flag, RunStats stats) {
+        // Time-lapse: the objects followed through all frames
+        if (set.track && imp.getNFrames() > 1){
+        	trackFrames(imp, seeds, zs, set, flag, stats);
+        	return;
         }
 
-        // Current slice to bottom
-        for(int i=cur_slice; i>1; i--){
-        	findNextRois(roimap, i, -1);
+        // Both engines threshold at the levels of the text fields
+        int low = set.low;
+        int high = set.high;
+        RunLengthMask result;
+        if (set.voxels){
+        	// Label thresholded voxels and grow the objects in one pass
+        	final VoxelSegmenter seg = new VoxelSegmenter(low, high, set.min_area);
+        	seg.setCancelFlag(flag);
+        	seg.setRunStats(stats);
+
+        	// Virtual stacks of uncompressed files are streamed from a memory mapping
+        	ImageStack stack = imp.getStack();
+        	MappedStack mapped = stack.isVirtual() ? MappedStack.open(imp) : null;
+        	try{
+        		seg.label(mapped != null ? mapped : stack, m_slice_cache, imp.getID());
+        	}finally{
+        		if (mapped != null){
+        			try{
+        				mapped.close();
+        			}catch(IOException e){
+        				// Nothing left to read
+        			}
+        		}
+        	}
+
+        	// Objects written out in parallel
+        	final int[][] roots = seg.getObjectRoots(seeds, zs);
+        	final RunLengthMask mask = new RunLengthMask(imp.getWidth(), imp.getHeight(), imp.getStackSize());
+        	ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+        	for(int k=0; k<seeds.length; k++){
+        		final int obj = k;
+        		tasks.add(new Runnable() {
+        			public void run(){
+        				seg.addTo(mask, roots[obj], obj+1);
+        			}
+        		});
+        	}
+        	runAll(tasks);
+        	result = mask;
+        }else{
+        	result = findObjects(imp, seeds, zs, low, high, set.min_area, flag, stats);
         }
 
-    	// Forward search
-        for(int i=1; i<Num; i++){
-        	findNextRois(roimap, i, 1);
+        HashSet<Integer> found = new HashSet<Integer>();
+        for(int label : result.getLabels()) found.add(label);
+        for(int k=1; k<=seeds.length && seeds.length > 1; k++){
+        	if (!found.contains(k)) IJ.log("Object " + k + ": nothing new reached from its seed");
         }
-    	
-        // Backward search
-        for(int i=Num-1; i>1; i--){
-        	findNextRois(roimap, i, -1);
+
+        // Output; the mask is kept for the volume calculation unless rois were made
+        String output = set.output;
+        m_result = output.equals("Roi Manager") ? null : result;
+        m_result_image = imp.getID();
+        m_result_tagged = seeds.length > 1;
+        final String source = m_result != null ? "Last run" : "Roi Manager";
+        EventQueue.invokeLater(new Runnable() {
+        	public void run(){
+        		m_cho_volume.select(source);
+        	}
+        });
+        if (output.equals("Roi Manager")){
+        	// Seeds taken from the manager are replaced by their objects, so that
+        	// the volume calculation does not count them as one more object
+        	if (set.from_manager) manager.reset();
+        	addToManager(manager, imp, result, seeds.length > 1, flag);
+        }else if (output.equals("Slice view")){
+        	MaskView.show(imp, result);
+        }else if (output.equals("Label image")){
+        	result.toLabelImage(imp.getShortTitle() + "-labels").show();
+        }else{
+        	try{
+        		if (output.equals("RoiSet zip")) saveRoiSet(result, imp, set.path, seeds.length > 1, flag);
+        		else result.write(set.path);
+        	}catch(IOException e){
+        		IJ.error("Volume analysis", e.getMessage());
+        	}
         }
+	}
+
+	// File for the output type, asked on the event thread before the run
+	// ("" for outputs without a file, null if canceled)
+	private String chooseOutput(ImagePlus imp, String output){
+		if (!output.equals("RoiSet zip") && !output.equals("Binary file")) return "";
+		boolean zip = output.equals("RoiSet zip");
+		SaveDialog sd = new SaveDialog("Save objects", imp.getShortTitle() + (zip ? "-RoiSet" : "-objects"), zip ? ".zip" : ".rlm");
+		if (sd.getFileName() == null) return null;
+		return sd.getDirectory() + sd.getFileName();
+	}
+
+	// Add the objects of mask to the manager, slice by slice. The manager labels
+	// each roi with its slice and center, followed by "-obj<id>" when tagged
+	private void addToManager(RoiManager manager, ImagePlus imp, RunLengthMask mask, boolean tagged, CancelFlag flag){
+		// Labels are taken from the current image, which the user may change meanwhile
+		WindowManager.setTempCurrentImage(imp);
+		try{
+			for(int z=1; z<=mask.getSize(); z++){
+				flag.check();
+				for(int label : mask.getLabels(z)){
+					Roi roi = mask.getRoi(z, label);
+					if (roi == null) continue;
+					if (tagged && label <= 255) roi.setGroup(label);
+					roi.setPosition(z);
+					manager.addRoi(roi);
+					if (tagged){
+						int last = manager.getCount() - 1;
+						manager.rename(last, manager.getName(last) + OBJECT_TAG + label);
+					}
+				}
+			}
+		}finally{
+			WindowManager.setTempCurrentImage(null);
+		}
+	}
 
-        for(int i=1; i<roimap.size(); i++){
-            imp.setPosition(i);
-    		ArrayList<Roi> rois = roimap.get(i);
-    		for(int j=0; j<rois.size(); j++){
-    			manager.addRoi(rois.get(j));
+	// Save the objects of mask as a RoiSet zip, with the labels of the roi manager
+	private void saveRoiSet(RunLengthMask mask, ImagePlus imp, String path, boolean tagged, CancelFlag flag) throws IOException {
+		RoiManager manager = new RoiManager(true);
+		try{
+			addToManager(manager, imp, mask, tagged, flag);
+			if (!manager.save(path)) throw new IOException("Could not save " + path);
+		}finally{
+			// close() would also forget the manager of the user
+			manager.dispose();
+		}
+	}
+
+	// Object ID from a roi label (0 if untagged)
+	private static int getObjectId(String label){
+		int i = label != null ? label.lastIndexOf(OBJECT_TAG) : -1;
+		if (i < 0) return 0;
+		int end = i + OBJECT_TAG.length();
+		while(end < label.length() && Character.isDigit(label.charAt(end))) end++;
+		if (end == i + OBJECT_TAG.length()) return 0;
+		return Integer.parseInt(label.substring(i + OBJECT_TAG.length(), end));
+	}
+
+	// Volume of the objects of the seeds in every frame, linked from frame to
+	// frame by overlap. Always done on voxel labels
+	private void trackFrames(ImagePlus imp, Roi[] seeds, int[] zs, RunSettings set, CancelFlag flag, RunStats stats){
+
+		// Seeds are on stack slices; the tracker wants z planes of one start frame
+		int[] planes = new int[zs.length];
+		int t0 = imp.convertIndexToPosition(zs[0])[2];
+		for(int k=0; k<zs.length; k++){
+			int[] pos = imp.convertIndexToPosition(zs[k]);
+			if (pos[2] != t0){
+				IJ.error("Volume analysis", "Seeds to track must all be on one frame (found frames " + t0 + " and " + pos[2] + ").");
+				return;
+			}
+			planes[k] = pos[1];
+		}
+
+		long t = stats.begin();
+		ImageStack stack = imp.getStack();
+		MappedStack mapped = stack.isVirtual() ? MappedStack.open(imp) : null;
+		try{
+			FrameTracker tracker = new FrameTracker(imp, mapped != null ? mapped : stack, set.low, set.high, set.min_area, set.z_px);
+			tracker.setCancelFlag(flag);
+			tracker.setRunStats(stats);
+			tracker.track(seeds, planes, t0, new ResultsTable(), "Volume tracking", seeds.length > 1);
+		}finally{
+			if (mapped != null){
+				try{
+					mapped.close();
+				}catch(IOException e){
+					// Nothing left to read
+				}
+			}
+		}
+		stats.end("Tracking", t);
+	}
+
+	// Volume, surface, bounds and centroid of the objects of mask, from its runs
+	private void calcMaskVolume(ImagePlus imp, RunLengthMask mask, boolean tagged, double z_px, CancelFlag flag, RunStats stats){
+    	long t = stats.begin();
+    	ResultsTable rt = new ResultsTable();
+    	double vol = 0;
+    	for(int label : mask.getLabels()){
+    		ObjectMetrics metrics = ObjectMetrics.forCalibration(imp.getWidth(), imp.getHeight(), imp.getCalibration(), z_px);
+    		for(int z=1; z<=mask.getSize(); z++){
+    			flag.check();
+    			int[] runs = mask.getRuns(z, label);
+    			if (runs.length > 0) metrics.addRuns(z, runs);
     		}
+    		metrics.finish();
+    		vol += metrics.getVolume();
+    		metrics.addTo(rt, tagged ? imp.getTitle() + OBJECT_TAG + label : imp.getTitle());
     	}
-        imp.setPosition(cur_slice);
+    	stats.end("Object metrics", t);
+    	IJ.log("Total volume = " + vol);
+    	rt.show("Volume analysis");
 	}
-	
-	// Calculate volume
-	private void calc_volume(){
-		ImagePlus imp = IJ.getImage();
-        if (null == imp) return;
-		ImageProcessor ip = imp.getProcessor();
 
-        int cur_slice = imp.getCurrentSlice();
-		
-		// Roi manager
-    	RoiManager manager = RoiManager.getInstance();
-    	if (manager == null)
-    		manager = new RoiManager();
+	// Calculate volume
+	private void calc_volume(ImagePlus imp, RoiManager manager, RunSettings set, final CancelFlag flag, final RunStats stats){
+        // Objects of the last run on this image, kept as a mask
+        if (set.volume.equals("Last run")){
+        	calcMaskVolume(imp, m_result, m_result_tagged, set.z_px, flag, stats);
+        	return;
+        }
 
+        // Objects saved by an earlier run
+        if (set.volume.equals("Objects file")){
+        	RunLengthMask mask;
+        	try{
+        		mask = RunLengthMask.read(set.path);
+        	}catch(IOException e){
+        		IJ.error("Volume analysis", e.getMessage());
+        		return;
+        	}
+        	if (mask.getWidth() != imp.getWidth() || mask.getHeight() != imp.getHeight() || mask.getSize() != imp.getStackSize()){
+        		IJ.error("Volume analysis", "The objects of " + new File(set.path).getName() + " were not made on an image of this size.");
+        		return;
+        	}
+        	calcMaskVolume(imp, mask, mask.getLabels().length > 1, set.z_px, flag, stats);
+        	return;
+        }
 
-    	double z_px = Double.parseDouble(m_z_px.getText());
+        int cur_slice = imp.getCurrentSlice();
+    	double z_px = set.z_px;
+		final int low = set.low;
+		final int high = set.high;
     	
-    	int vol = 0;
-    	Roi[] rois = manager.getRoisAsArray();
+    	// Group rois by slice
+    	final Roi[] rois = manager.getRoisAsArray();
+    	final ImageStack stack = imp.getStack();
+    	Map<Integer, ArrayList<Integer>> slices = new TreeMap<Integer, ArrayList<Integer>>();
     	for(int i=0; i<rois.length; i++){
     		int z = manager.getSliceNumber(manager.getName(i));
-    		imp.setPosition(z);
-    		
-    		int vol_roi = 0;
-            ShapeRoi shroi = new ShapeRoi(rois[i]);
-            Roi[] all_rois = shroi.getRois();
-    		for(int j=0; j<all_rois.length; j++){
-    			int sign = checkInside(all_rois[j], ip) ? +1 : -1;
-    			vol_roi += getRoiArea(all_rois[j]) * sign;
+    		if (z < 1 || z > stack.getSize()) z = cur_slice;
+    		ArrayList<Integer> idx = slices.get(z);
+    		if (idx == null){
+    			idx = new ArrayList<Integer>();
+    			slices.put(z, idx);
     		}
-    		IJ.log(String.valueOf(vol_roi));
-    		vol += vol_roi*z_px;
+    		idx.add(i);
+    	}
+
+    	// Signed area of each roi, slices in parallel
+    	final int[] vol_rois = new int[rois.length];
+    	ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+    	for(final Map.Entry<Integer, ArrayList<Integer>> e : slices.entrySet()){
+    		tasks.add(new Runnable() {
+    			public void run(){
+    				flag.check();
+    				long t = stats.begin();
+    				ImageProcessor sip = stack.getProcessor(e.getKey());
+    				for(int i : e.getValue()){
+    					int vol_roi = 0;
+    		            ShapeRoi shroi = new ShapeRoi(rois[i]);
+    		            Roi[] all_rois = shroi.getRois();
+    		    		for(int j=0; j<all_rois.length; j++){
+    		    			int[] m = measureRoi(all_rois[j], sip, low, high, stats);
+    		    			vol_roi += m[1] != 0 ? m[0] : -m[0];
+    		    		}
+    		    		vol_rois[i] = vol_roi;
+    				}
+    				stats.end("Roi measurement", t);
+    			}
+    		});
+    	}
+    	runAll(tasks);
+
+    	for(int i=0; i<rois.length; i++){
+    		IJ.log(String.valueOf(vol_rois[i]));
+    	}
+
+    	// Volume, surface, bounds and centroid of each object (rois grouped by
+    	// the ID in their label), slice by slice
+    	long t = stats.begin();
+    	Rectangle frame = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+    	Map<Integer, ObjectMetrics> objects = new TreeMap<Integer, ObjectMetrics>();
+    	for(Map.Entry<Integer, ArrayList<Integer>> e : slices.entrySet()){
+    		flag.check();
+    		Map<Integer, RoiMask> masks = new TreeMap<Integer, RoiMask>();
+    		for(int i : e.getValue()){
+    			int id = getObjectId(manager.getName(i));
+    			RoiMask mask = masks.get(id);
+    			if (mask == null){
+    				mask = new RoiMask(frame);
+    				masks.put(id, mask);
+    			}
+    			if (rois[i].isArea()) mask.add(rois[i]);
+    		}
+    		for(Map.Entry<Integer, RoiMask> m : masks.entrySet()){
+    			ObjectMetrics om = objects.get(m.getKey());
+    			if (om == null){
+    				om = ObjectMetrics.forCalibration(imp.getWidth(), imp.getHeight(), imp.getCalibration(), z_px);
+    				objects.put(m.getKey(), om);
+    			}
+    			om.addSlice(e.getKey(), m.getValue().m_mask);
+    		}
+    	}
+    	if (objects.isEmpty())
+    		objects.put(0, ObjectMetrics.forCalibration(imp.getWidth(), imp.getHeight(), imp.getCalibration(), z_px));
+
+    	// The total adds up the signed roi areas logged above; the union-mask
+    	// volume of each object is the Volume column of the table
+    	ResultsTable rt = new ResultsTable();
+    	for(Map.Entry<Integer, ObjectMetrics> o : objects.entrySet()){
+    		o.getValue().finish();
+    		o.getValue().addTo(rt, o.getKey() == 0 ? imp.getTitle() : imp.getTitle() + OBJECT_TAG + o.getKey());
+    	}
+    	stats.end("Object metrics", t);
+    	double vol = 0;
+    	for(int i=0; i<rois.length; i++){
+    		vol += vol_rois[i]*z_px;
     	}
     	IJ.log("Total volume = " + vol);
+    	rt.show("Volume analysis");
         imp.setPosition(cur_slice);
 	}
 
+	// Start a volume analysis; seeds, settings and the output file are taken
+	// here on the event thread
+	private void submitRun(final ImagePlus imp, int low, int high){
+		final RoiManager manager = RoiManager.getInstance() != null ? RoiManager.getInstance() : new RoiManager();
+		boolean from_manager = m_cho_seeds.getSelectedItem().equals("Roi Manager");
+		ArrayList<Integer> zlist = new ArrayList<Integer>();
+		final Roi[] seeds = getSeeds(imp, manager, from_manager, zlist);
+		if (seeds.length == 0){
+			IJ.showMessage(from_manager ? "No rois in the Roi Manager. " : "No area selected. ");
+			return;
+		}
+		final int[] zs = new int[seeds.length];
+		for(int k=0; k<zs.length; k++){
+			zs[k] = zlist.get(k);
+		}
+		String path = chooseOutput(imp, m_cho_output.getSelectedItem());
+		if (path == null) return;
+		final RunSettings set = readSettings(low, high, path);
+		if (set == null) return;
+		m_runner.submit("Volume analysis", new BackgroundRunner.Task() {
+			public void run(CancelFlag flag){
+				RunStats stats = RunStats.start("Volume analysis", !set.stats_out.equals("None"));
+				try{
+					volume_analysis(imp, manager, seeds, zs, set, flag, stats);
+				}finally{
+					stats.finish(set.stats_out);
+				}
+			}
+		});
+	}
+
+	// Start a volume calculation from the source of the volume choice
+	private void submitCalc(final ImagePlus imp, int low, int high){
+		String volume = m_cho_volume.getSelectedItem();
+		String path = "";
+		RoiManager manager = null;
+		if (volume.equals("Last run")){
+			if (m_result == null || m_result_image != imp.getID()){
+				IJ.showMessage("No objects kept for this image. Run on it with an output other than the Roi Manager.");
+				return;
+			}
+		}else if (volume.equals("Objects file")){
+			OpenDialog od = new OpenDialog("Load objects", null);
+			if (od.getFileName() == null) return;
+			path = od.getPath();
+		}else{
+			manager = RoiManager.getInstance() != null ? RoiManager.getInstance() : new RoiManager();
+		}
+		final RoiManager run_manager = manager;
+		final RunSettings set = readSettings(low, high, path);
+		if (set == null) return;
+		m_runner.submit("Volume calculation", new BackgroundRunner.Task() {
+			public void run(CancelFlag flag){
+				RunStats stats = RunStats.start("Volume calculation", !set.stats_out.equals("None"));
+				try{
+					calc_volume(imp, run_manager, set, flag, stats);
+				}finally{
+					stats.finish(set.stats_out);
+				}
+			}
+		});
+	}
+
+	// Settings of the window (null after a message if a field is not a number)
+	private RunSettings readSettings(int low, int high, String path){
+		try{
+			return new RunSettings(this, low, high, path.length() > 0 ? path : null);
+		}catch(NumberFormatException e){
+			IJ.showMessage("Invalid number: " + e.getMessage());
+			return null;
+		}
+	}
+
 	// Buttons pressed
     public void actionPerformed(ActionEvent e){
+    	if (e.getSource() == m_bt_cancel){
+    		m_runner.cancel();
+    		return;
+    	}
+    	updateZPixels();
+
     	// Thresholds
 		int low = Integer.parseInt(m_txt_low.getText());
 		int high = Integer.parseInt(m_txt_high.getText());
@@ -233,10 +783,13 @@ public class Volume_Analysis implements PlugIn, ActionListener, KeyListener{
 		Object src = e.getSource();
     	if (src==null){
 			return;
-    	}else if (src.equals(m_bt_run)){
-    		volume_analysis();
-    	}else if (src.equals(m_bt_calc)){
-    		calc_volume();
+    	}else if (src.equals(m_bt_run) || src.equals(m_bt_calc)){
+    		if (m_runner.isRunning()){
+    			IJ.showStatus("Volume analysis: already running");
+    			return;
+    		}
+    		if (src.equals(m_bt_calc)) submitCalc(imp, low, high);
+    		else submitRun(imp, low, high);
     	}else if (src.equals(m_bt_set)){
 			ip.setThreshold(low, high, ImageProcessor.RED_LUT);
 			imp.updateAndDraw();    		
@@ -249,6 +802,21 @@ public class Volume_Analysis implements PlugIn, ActionListener, KeyListener{
     	}
 	}
 
+	// A calibrated image brings its own slice spacing: the z-pixels field then
+	// shows it (pixel depth over pixel width) and cannot be edited
+	private void updateZPixels(){
+		ImagePlus imp = WindowManager.getCurrentImage();
+		Calibration cal = imp != null ? imp.getCalibration() : null;
+		boolean scaled = cal != null && cal.scaled();
+		if (scaled){
+			if (m_z_px.isEnabled()) m_z_px_user = m_z_px.getText();
+			m_z_px.setText(IJ.d2s(cal.pixelDepth/cal.pixelWidth, 4));
+		}else if (!m_z_px.isEnabled()){
+			m_z_px.setText(m_z_px_user);
+		}
+		m_z_px.setEnabled(!scaled);
+	}
+
     // Key pressed
     public void keyPressed(KeyEvent e) {
     	// If Enter pressed...
@@ -291,9 +859,13 @@ public class Volume_Analysis implements PlugIn, ActionListener, KeyListener{
 		
         Panel p = new Panel();
     	Frame frm = new Frame(new String("Volume analysis"));
-    	frm.setSize(new Dimension(300,200));
+    	frm.setSize(new Dimension(300,325));
     	frm.setLayout(new GridLayout(0, 1));
         frm.addWindowListener(new WindowAdapter() {
+        	public void windowActivated(WindowEvent e) {
+        		updateZPixels();
+        	}
+
         	public void windowClosing(WindowEvent e) {
         		System.exit(0);
         	}
@@ -303,6 +875,40 @@ public class Volume_Analysis implements PlugIn, ActionListener, KeyListener{
         m_z_px = new TextField("1");
 		addLabeledComponent("z-pixels:", frm, m_z_px);
 
+        // Segmentation engine
+        m_cho_engine = new Choice();
+        m_cho_engine.add("ROI geometry");
+        m_cho_engine.add("Voxel labels");
+		addLabeledComponent("Engine:", frm, m_cho_engine);
+
+        // Seeds
+        m_cho_seeds = new Choice();
+        m_cho_seeds.add("Selection");
+        m_cho_seeds.add("Roi Manager");
+		addLabeledComponent("Seeds:", frm, m_cho_seeds);
+
+        // Output
+        m_cho_output = new Choice();
+        m_cho_output.add("Roi Manager");
+        m_cho_output.add("Slice view");
+        m_cho_output.add("Label image");
+        m_cho_output.add("RoiSet zip");
+        m_cho_output.add("Binary file");
+		addLabeledComponent("Output:", frm, m_cho_output);
+
+        // Time-lapse
+        m_cho_time = new Choice();
+        m_cho_time.add("Current frame");
+        m_cho_time.add("Track over frames");
+		addLabeledComponent("Frames:", frm, m_cho_time);
+
+        // Run statistics
+        m_cho_stats = new Choice();
+        for(String out : RunStats.OUTPUTS){
+        	m_cho_stats.add(out);
+        }
+		addLabeledComponent("Run statistics:", frm, m_cho_stats);
+
         // Minimum area
         m_min_area = new TextField("0");
 		addLabeledComponent("Ignore less than (px^2):", frm, m_min_area);
@@ -329,17 +935,25 @@ public class Volume_Analysis implements PlugIn, ActionListener, KeyListener{
 		p.add(m_bt_reset);
 		frm.add(p);
 
-		// Run button
+		// Run/Cancel buttons
 		p = new Panel();
-		p.setLayout(new GridLayout(1, 1));
+		p.setLayout(new GridLayout(1, 2));
 		m_bt_run = new Button("Run");
 		m_bt_run.addActionListener(this);
 		p.add(m_bt_run);
+		m_bt_cancel = new Button("Cancel");
+		m_bt_cancel.addActionListener(this);
+		p.add(m_bt_cancel);
 		frm.add(p);
 
-		// Calculate button
+		// Calculate button, on the roi manager or the objects kept from the last run
 		p = new Panel();
-		p.setLayout(new GridLayout(1, 1));
+		p.setLayout(new GridLayout(1, 2));
+		m_cho_volume = new Choice();
+		m_cho_volume.add("Roi Manager");
+		m_cho_volume.add("Last run");
+		m_cho_volume.add("Objects file");
+		p.add(m_cho_volume);
 		m_bt_calc = new Button("Calculate volume");
 		m_bt_calc.addActionListener(this);
 		p.add(m_bt_calc);
@@ -355,6 +969,8 @@ public class Volume_Analysis implements PlugIn, ActionListener, KeyListener{
 		frm.add(p);
 		*/
 		
+		m_runner = new BackgroundRunner(m_bt_cancel, m_bt_run, m_bt_calc);
+
 		// Show
 		frm.show();
     }
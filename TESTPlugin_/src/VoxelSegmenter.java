@@ -0,0 +1,218 @@
+import ij.*;
+import ij.process.*;
+import ij.gui.*;
+import java.util.*;
+
+// Object reconstruction on thresholded voxels.
+// Each slice is labelled into 2D components, and components of adjacent
+// slices sharing a pixel are joined by union-find, all in one pass over
+// the stack. The object is the union of the 3D components touching the seed.
+public class VoxelSegmenter {
+	double m_low, m_high;				// thresholds (inclusive)
+	int m_min_area;						// ignore 2D components up to this area
+
+	int m_nslices;
+	SliceComponents[] m_slices;			// 1-based
+	int[] m_base;						// global id of the first component of each slice
+	int[] m_parent;						// union-find over global ids
+	CancelFlag m_cancel;				// checked between slices (may be null)
+	RunStats m_stats = RunStats.NONE;	// of the run
+
+	public VoxelSegmenter(double low, double high, int min_area){
+		m_low = low;
+		m_high = high;
+		m_min_area = min_area;
+	}
+
+	public void setCancelFlag(CancelFlag flag){
+		m_cancel = flag;
+	}
+
+	// Stats of the run (null: none)
+	public void setRunStats(RunStats stats){
+		m_stats = stats != null ? stats : RunStats.NONE;
+	}
+
+	private void checkCanceled(){
+		if (m_cancel != null) m_cancel.check();
+	}
+
+	private int find(int i){
+		while(m_parent[i] != i){
+			m_parent[i] = m_parent[m_parent[i]];
+			i = m_parent[i];
+		}
+		return i;
+	}
+
+	private void union(int a, int b){
+		a = find(a);
+		b = find(b);
+		if (a < b) m_parent[b] = a;
+		else if (b < a) m_parent[a] = b;
+	}
+
+	// Label all slices of the stack
+	public void label(ImageStack stack){
+		label(stack, null, 0);
+	}
+
+	// Same as above, taking the slice components of image from cache when unchanged
+	public void label(ImageStack stack, SliceCache cache, int image){
+		int n = stack.getSize();
+		m_nslices = n;
+		m_slices = new SliceComponents[n+1];
+		m_base = new int[n+2];
+		m_parent = new int[256];
+		for(int z=1; z<=n; z++){
+			checkCanceled();
+			long t = m_stats.begin();
+			SliceComponents sc = cache != null ? cache.getComponents(stack, image, z, m_low, m_high, m_min_area, m_stats)
+					: SliceComponents.threshold(stack.getProcessor(z), m_low, m_high, m_min_area, m_stats);
+			m_slices[z] = sc;
+			m_stats.end("Labelling", t);
+			m_base[z+1] = m_base[z] + sc.getComponentCount();
+			int total = m_base[z+1];
+			if (total > m_parent.length)
+				m_parent = Arrays.copyOf(m_parent, Math.max(total, 2*m_parent.length));
+			for(int i=m_base[z]; i<total; i++){
+				m_parent[i] = i;
+			}
+
+			// Join with the previous slice
+			if (z > 1){
+				t = m_stats.begin();
+				final int base_a = m_base[z-1], base_b = m_base[z];
+				SliceComponents.forEachOverlap(m_slices[z-1], sc, new SliceComponents.OverlapListener() {
+					public void overlap(int ca, int cb){
+						union(base_a + ca, base_b + cb);
+					}
+				});
+				m_stats.end("Slice linking", t);
+			}
+			IJ.showProgress(z, n);
+		}
+
+		// Point every component at its root, so that the queries below only
+		// read the union-find and can be made from several threads
+		for(int i=0; i<m_base[n+1]; i++){
+			m_parent[i] = find(i);
+		}
+	}
+
+	// Roots of the 3D components touching roi on slice z
+	public int[] getSeedRoots(Roi roi, int z){
+		boolean[] inside = m_slices[z].getComponentsInside(roi);
+		ArrayList<Integer> roots = new ArrayList<Integer>();
+		for(int c=0; c<inside.length; c++){
+			if (!inside[c]) continue;
+			int r = find(m_base[z] + c);
+			if (!roots.contains(r)) roots.add(r);
+		}
+		int[] res = new int[roots.size()];
+		for(int i=0; i<res.length; i++){
+			res[i] = roots.get(i);
+		}
+		return res;
+	}
+
+	// Roots of the objects grown from rois[k] on slice zs[k]. A 3D component
+	// touching several seeds belongs to the object of the first one
+	public int[][] getObjectRoots(Roi[] rois, int[] zs){
+		HashSet<Integer> claimed = new HashSet<Integer>();
+		int[][] roots = new int[rois.length][];
+		for(int k=0; k<rois.length; k++){
+			ArrayList<Integer> own = new ArrayList<Integer>();
+			for(int r : getSeedRoots(rois[k], zs[k])){
+				if (claimed.add(r)) own.add(r);
+			}
+			roots[k] = new int[own.size()];
+			for(int i=0; i<roots[k].length; i++){
+				roots[k][i] = own.get(i);
+			}
+		}
+		return roots;
+	}
+
+	// Objects continued from the objects of prev_roots in prev, a segmentation
+	// of a stack of the same size (e.g. the previous time frame): object k gets
+	// the roots of the 3D components sharing a voxel with object k of prev, in
+	// increasing order. A component reached by several objects stays with the
+	// lowest one. All objects are linked in one overlap pass per slice
+	public int[][] getOverlappingRoots(VoxelSegmenter prev, int[][] prev_roots){
+		// Object of each root of prev, and the lowest object reaching each root here
+		int[] prev_obj = new int[prev.m_base[prev.m_nslices+1]];
+		Arrays.fill(prev_obj, -1);
+		for(int k=prev_roots.length-1; k>=0; k--){
+			for(int r : prev_roots[k]) prev_obj[r] = k;
+		}
+		final int[] owner = new int[m_base[m_nslices+1]];
+		Arrays.fill(owner, -1);
+		for(int z=1; z<=Math.min(m_nslices, prev.m_nslices); z++){
+			checkCanceled();
+			final int[] obj = new int[prev.m_slices[z].getComponentCount()];
+			for(int c=0; c<obj.length; c++){
+				obj[c] = prev_obj[prev.find(prev.m_base[z] + c)];
+			}
+			final int base = m_base[z];
+			SliceComponents.forEachOverlap(prev.m_slices[z], m_slices[z], new SliceComponents.OverlapListener() {
+				public void overlap(int ca, int cb){
+					int k = obj[ca];
+					if (k < 0) return;
+					int r = find(base + cb);
+					if (owner[r] < 0 || k < owner[r]) owner[r] = k;
+				}
+			});
+		}
+
+		int[] count = new int[prev_roots.length];
+		for(int r=0; r<owner.length; r++){
+			if (owner[r] >= 0) count[owner[r]]++;
+		}
+		int[][] roots = new int[prev_roots.length][];
+		for(int k=0; k<roots.length; k++){
+			roots[k] = new int[count[k]];
+			count[k] = 0;
+		}
+		for(int r=0; r<owner.length; r++){
+			if (owner[r] >= 0) roots[owner[r]][count[owner[r]]++] = r;
+		}
+		return roots;
+	}
+
+	// Add the slices of the object of the roots to metrics
+	public void measure(int[] roots, ObjectMetrics metrics){
+		for(int z=1; z<=m_nslices && roots.length > 0; z++){
+			checkCanceled();
+			int[] runs = m_slices[z].getRuns(getSelected(z, roots));
+			if (runs.length > 0) metrics.addRuns(z, runs);
+		}
+		metrics.finish();
+	}
+
+	// Components of slice z belonging to one of the roots
+	public boolean[] getSelected(int z, int[] roots){
+		int ncomp = m_slices[z].getComponentCount();
+		boolean[] selected = new boolean[ncomp];
+		for(int c=0; c<ncomp; c++){
+			int r = find(m_base[z] + c);
+			for(int k=0; k<roots.length; k++){
+				if (roots[k] == r){
+					selected[c] = true;
+					break;
+				}
+			}
+		}
+		return selected;
+	}
+
+	// Add the object of the roots to mask under label
+	public void addTo(RunLengthMask mask, int[] roots, int label){
+		long t = m_stats.begin();
+		for(int z=1; z<=m_nslices; z++){
+			checkCanceled();
+			if (roots.length > 0) mask.setRuns(z, label, m_slices[z].getRuns(getSelected(z, roots)));
+		}
+		m_stats.end("Mask output", t);
+	}
+}
@@ -0,0 +1,77 @@
+import ij.gui.*;
+import ij.process.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// Angle profiles of a roi on a random image
+public class AngleAnalyzerTest {
+	private static RayProfiler profiler(int width, int height, boolean interpolate){
+		Random rnd = new Random(width);
+		float[] pixels = new float[width*height];
+		for(int i=0; i<pixels.length; i++){
+			pixels[i] = rnd.nextFloat()*100;
+		}
+		return new RayProfiler(pixels, width, height, interpolate);
+	}
+
+	private static Roi outline(){
+		return new PolygonRoi(new OvalRoi(8, 10, 50, 44).getFloatPolygon(), Roi.POLYGON);
+	}
+
+	private static double[] profile(int threads, boolean polar, String stat){
+		AngleAnalyzer a = new AngleAnalyzer(360);
+		a.setThreads(threads);
+		a.setPolar(polar, false);
+		a.setStatistic(stat);
+		try{
+			return a.analyze(profiler(64, 64, true), outline());
+		}finally{
+			a.shutdown();
+		}
+	}
+
+	@Test
+	public void parallelSweepMatchesSequential(){
+		for(String stat : RayProfiler.STATISTICS){
+			assertArrayEquals(stat, profile(1, false, stat), profile(4, false, stat), 0);
+			assertArrayEquals(stat + " (polar)", profile(1, true, stat), profile(4, true, stat), 0);
+		}
+	}
+
+	@Test
+	public void polarMatchesRaysOnSamePoints(){
+		// Along the axes of a square around a pixel center both sample the
+		// points at unit steps from the center to the outline
+		for(boolean interpolate : new boolean[]{false, true}){
+			RayProfiler profiler = profiler(64, 64, interpolate);
+			for(String stat : RayProfiler.STATISTICS){
+				AngleAnalyzer a = new AngleAnalyzer(4);
+				a.setCenter("User point");
+				a.setCenterPoint(32, 32);
+				a.setStatistic(stat);
+				double[] rays = a.analyze(profiler, new Roi(22, 22, 20, 20));
+				a.setPolar(true, false);
+				double[] polar = a.analyze(profiler, new Roi(22, 22, 20, 20));
+				assertArrayEquals(stat + (interpolate ? " (interpolated)" : ""), rays, polar, 1e-3);
+			}
+		}
+	}
+
+	@Test
+	public void reduceAllStatisticsInOnePass(){
+		FloatProcessor polar = new FloatProcessor(2, 4, new float[]{
+				1, 5,
+				3, Float.NaN,
+				2, 7,
+				Float.NaN, Float.NaN});
+		double[][] stats = AngleAnalyzer.reduceAll(polar);
+		assertArrayEquals(new double[]{3, 7}, stats[RayProfiler.MAX], 0);
+		assertArrayEquals(new double[]{2, 6}, stats[RayProfiler.MEAN], 0);
+		assertArrayEquals(new double[]{6, 12}, stats[RayProfiler.INTEGRAL], 0);
+		assertArrayEquals(new double[]{1, 2}, stats[RayProfiler.RADIUS_OF_MAX], 0);
+		for(int stat=0; stat<stats.length; stat++){
+			assertArrayEquals(stats[stat], AngleAnalyzer.reduce(polar, stat), 0);
+		}
+	}
+}
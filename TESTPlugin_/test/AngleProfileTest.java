@@ -0,0 +1,82 @@
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// Rotation, angle lookup and alignment of angle profiles
+public class AngleProfileTest {
+	private static double[] ramp(int n){
+		double[] v = new double[n];
+		for(int i=0; i<n; i++) v[i] = i;
+		return v;
+	}
+
+	@Test
+	public void rotationMovesOffsetOnly(){
+		double[] values = ramp(8);
+		AngleProfile prof = new AngleProfile(values);
+		prof.rotate(3);
+		assertEquals(3, prof.getOffset());
+		assertEquals(3, prof.get(0), 0);
+		assertEquals(2, prof.get(7), 0);
+		assertArrayEquals(new double[]{3, 4, 5, 6, 7, 0, 1, 2}, prof.toArray(), 0);
+		assertArrayEquals(ramp(8), values, 0);
+
+		// Negative and large shifts wrap around
+		prof.rotate(-5);
+		assertEquals(6, prof.getOffset());
+		prof.rotate(-8*1000 - 6);
+		assertEquals(0, prof.getOffset());
+		assertArrayEquals(ramp(8), prof.toArray(), 0);
+	}
+
+	@Test
+	public void centerAtMovesValueToMiddle(){
+		for(int n : new int[]{8, 7}){
+			double[] values = new double[n];
+			values[1] = 5;
+			AngleProfile prof = new AngleProfile(values);
+			prof.centerAt(prof.indexOfMax());
+			assertEquals(n - n/2, prof.indexOfMax());
+		}
+	}
+
+	@Test
+	public void nearestAngle(){
+		assertEquals(0, AngleProfile.nearestIndex(1, 0, 360));
+		assertEquals(90, AngleProfile.nearestIndex(0, 1, 360));
+		assertEquals(180, AngleProfile.nearestIndex(-1, 1e-9, 360));
+		assertEquals(270, AngleProfile.nearestIndex(0, -1, 360));
+		assertEquals(45, AngleProfile.nearestIndex(2, 2, 360));
+		assertEquals(1, AngleProfile.nearestIndex(Math.cos(0.9*Math.PI/4), Math.sin(0.9*Math.PI/4), 8));
+
+		// Just below 2*PI rounds to index 0, not N
+		assertEquals(0, AngleProfile.nearestIndex(1, -1e-9, 360));
+	}
+
+	@Test
+	public void alignsRotatedProfile(){
+		Random rnd = new Random(3);
+		for(int n : new int[]{64, 360}){
+			double[] ref = new double[n];
+			for(int h=1; h<=4; h++){
+				double amp = rnd.nextDouble(), phase = 2*Math.PI*rnd.nextDouble();
+				for(int i=0; i<n; i++){
+					ref[i] += amp*Math.cos(2*Math.PI*h*i/n + phase);
+				}
+			}
+
+			// Profile rotated by 37 angles, with an offset in level
+			double[] rotated = new double[n];
+			for(int i=0; i<n; i++){
+				rotated[(i + 37) % n] = ref[i] + 10;
+			}
+			AngleProfile prof = new AngleProfile(rotated);
+			assertEquals(37, prof.alignmentShift(new AngleProfile(ref)));
+			prof.alignTo(new AngleProfile(ref));
+			double[] aligned = prof.toArray();
+			for(int i=0; i<n; i++){
+				assertEquals(ref[i] + 10, aligned[i], 1e-12);
+			}
+		}
+	}
+}
@@ -0,0 +1,64 @@
+import java.io.*;
+import org.junit.*;
+import org.junit.rules.*;
+import static org.junit.Assert.*;
+
+// Binary profile files written by BinarySink and read back
+public class BinarySinkTest {
+	@Rule
+	public TemporaryFolder m_tmp = new TemporaryFolder();
+
+	@Test
+	public void writeReadRoundTrip() throws IOException {
+		String path = new File(m_tmp.getRoot(), "profiles.bin").getPath();
+		double[] p1 = {1.5, -2, 0, 1e6};
+		double[] p2 = {0.25, 3, Double.NaN, -7};
+		BinarySink sink = new BinarySink(path);
+		sink.begin(4);
+		sink.add("stack.tif", "cell 1 c1 z2 t1", 10.5, 20.25, p1);
+		sink.add(null, null, 0, -1, p2);
+		sink.close();
+
+		DataInputStream in = new DataInputStream(new FileInputStream(path));
+		try{
+			assertEquals(BinarySink.MAGIC, in.readInt());
+			assertEquals(BinarySink.VERSION, in.readInt());
+			assertEquals(4, in.readInt());
+
+			assertEquals("stack.tif", in.readUTF());
+			assertEquals("cell 1 c1 z2 t1", in.readUTF());
+			assertEquals(10.5f, in.readFloat(), 0);
+			assertEquals(20.25f, in.readFloat(), 0);
+			for(double v : p1) assertEquals((float)v, in.readFloat(), 0);
+
+			assertEquals("", in.readUTF());
+			assertEquals("", in.readUTF());
+			assertEquals(0f, in.readFloat(), 0);
+			assertEquals(-1f, in.readFloat(), 0);
+			for(double v : p2) assertEquals((float)v, in.readFloat(), 0);
+			assertEquals(-1, in.read());
+		}finally{
+			in.close();
+		}
+
+		// The first profile is the alignment reference
+		assertArrayEquals(p1, AlignSink.readReference(path, 4), 0);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsWrongProfileLength() throws IOException {
+		BinarySink sink = new BinarySink(new File(m_tmp.getRoot(), "short.bin").getPath());
+		sink.begin(4);
+		try{
+			sink.add("a", "b", 0, 0, new double[3]);
+		}finally{
+			sink.close();
+		}
+	}
+
+	@Test
+	public void logBlocksAreLabelled(){
+		assertEquals("stack.tif\tcell 1 c1 z2 t1\t10.5\t20.25\n1.5\n-2.0",
+				LogSink.format("stack.tif", "cell 1 c1 z2 t1", 10.5, 20.25, new double[]{1.5, -2}));
+	}
+}
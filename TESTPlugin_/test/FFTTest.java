@@ -0,0 +1,73 @@
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// FFT of radix-2 and other lengths against a direct DFT
+public class FFTTest {
+	static final double TOL = 1e-9;
+
+	// Direct transform, exp(-2*pi*i*j*k/n) forward, scaled by 1/n inverse
+	private static double[][] dft(double[] re, double[] im, boolean inverse){
+		int n = re.length;
+		double sign = inverse ? 1 : -1;
+		double[] ore = new double[n], oim = new double[n];
+		for(int k=0; k<n; k++){
+			for(int j=0; j<n; j++){
+				double ang = sign*2*Math.PI*((long)j*k % n)/n;
+				double c = Math.cos(ang), s = Math.sin(ang);
+				ore[k] += re[j]*c - im[j]*s;
+				oim[k] += re[j]*s + im[j]*c;
+			}
+			if (inverse){
+				ore[k] /= n;
+				oim[k] /= n;
+			}
+		}
+		return new double[][]{ore, oim};
+	}
+
+	private static void check(int n, boolean inverse){
+		Random rnd = new Random(n);
+		double[] re = new double[n], im = new double[n];
+		for(int i=0; i<n; i++){
+			re[i] = rnd.nextDouble() - 0.5;
+			im[i] = rnd.nextDouble() - 0.5;
+		}
+		double[][] expected = dft(re, im, inverse);
+		FFT.transform(re, im, inverse);
+		for(int k=0; k<n; k++){
+			assertEquals("n=" + n + " re[" + k + "]", expected[0][k], re[k], TOL*n);
+			assertEquals("n=" + n + " im[" + k + "]", expected[1][k], im[k], TOL*n);
+		}
+	}
+
+	@Test
+	public void radix2(){
+		for(int n=1; n<=1024; n*=2){
+			check(n, false);
+			check(n, true);
+		}
+	}
+
+	@Test
+	public void otherLengths(){
+		for(int n : new int[]{3, 5, 7, 12, 100, 360, 1000}){
+			check(n, false);
+			check(n, true);
+		}
+	}
+
+	@Test
+	public void inverseRestoresInput(){
+		Random rnd = new Random(1);
+		double[] re = new double[360], im = new double[360];
+		for(int i=0; i<re.length; i++){
+			re[i] = rnd.nextGaussian();
+		}
+		double[] orig = re.clone();
+		FFT.transform(re, im, false);
+		FFT.transform(re, im, true);
+		assertArrayEquals(orig, re, TOL);
+		assertArrayEquals(new double[im.length], im, TOL);
+	}
+}
@@ -0,0 +1,66 @@
+import ij.*;
+import ij.gui.*;
+import ij.measure.*;
+import ij.process.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// Objects linked from frame to frame of a hyperstack
+public class FrameTrackerTest {
+	// Two z planes and two frames; a 3x3x2 block moves one pixel right and down
+	// from frame 1 to frame 2, where a second block appears apart from it
+	private static ImagePlus movingBlock(){
+		ImageStack stack = new ImageStack(12, 12);
+		for(int t=1; t<=2; t++){
+			for(int z=1; z<=2; z++){
+				ByteProcessor bp = new ByteProcessor(12, 12);
+				bp.setValue(200);
+				bp.fill(new Roi(t, t, 3, 3));
+				if (t == 2) bp.fill(new Roi(8, 8, 2, 2));
+				stack.addSlice(bp);
+			}
+		}
+		ImagePlus imp = new ImagePlus("moving", stack);
+		imp.setDimensions(1, 2, 2);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	private static ResultsTable track(ImagePlus imp, int t0, Roi... seeds){
+		FrameTracker tracker = new FrameTracker(imp, imp.getStack(), 128, 255, 0, 1);
+		int[] zs = new int[seeds.length];
+		java.util.Arrays.fill(zs, 1);
+		ResultsTable rt = new ResultsTable();
+		tracker.track(seeds, zs, t0, rt, "Tracking test", false);
+		return rt;
+	}
+
+	@Test
+	public void followsShiftedObject(){
+		ResultsTable rt = track(movingBlock(), 1, new Roi(1, 1, 1, 1));
+		assertEquals(2, rt.size());
+		assertEquals(1, rt.getValue("Frame", 0), 0);
+		assertEquals(2, rt.getValue("Frame", 1), 0);
+		for(int row=0; row<2; row++){
+			assertEquals(1, rt.getValue("Object", row), 0);
+			assertEquals(18, rt.getValue("Voxels", row), 0);
+		}
+		assertEquals(2.5, rt.getValue("X", 0), 1e-9);
+		assertEquals(3.5, rt.getValue("X", 1), 1e-9);
+		assertEquals(3.5, rt.getValue("Y", 1), 1e-9);
+	}
+
+	@Test
+	public void linksBackwardsFromLaterFrame(){
+		// Seeds on frame 2: the moving block is found in frame 1, the new one is not
+		ResultsTable rt = track(movingBlock(), 2, new Roi(4, 4, 1, 1), new Roi(9, 9, 1, 1));
+		assertEquals(3, rt.size());
+		assertEquals(1, rt.getValue("Frame", 0), 0);
+		assertEquals(1, rt.getValue("Object", 0), 0);
+		assertEquals(2.5, rt.getValue("X", 0), 1e-9);
+		assertEquals(2, rt.getValue("Frame", 1), 0);
+		assertEquals(2, rt.getValue("Frame", 2), 0);
+		assertEquals(2, rt.getValue("Object", 2), 0);
+		assertEquals(8, rt.getValue("Voxels", 2), 0);
+	}
+}
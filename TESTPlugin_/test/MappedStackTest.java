@@ -0,0 +1,94 @@
+import ij.*;
+import ij.io.*;
+import ij.process.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.junit.rules.*;
+import static org.junit.Assert.*;
+
+// Slices read through the memory mapping against the stack decoded by ImageJ
+public class MappedStackTest {
+	@Rule
+	public TemporaryFolder m_tmp = new TemporaryFolder();
+
+	// Stack of random slices saved as an uncompressed TIFF and opened again
+	private ImagePlus saved(int bitDepth, int nchannels, int nslices, int nframes) throws IOException {
+		Random rnd = new Random(bitDepth);
+		ImageStack stack = ImageStack.create(13, 7, nchannels*nslices*nframes, bitDepth);
+		for(int n=1; n<=stack.getSize(); n++){
+			ImageProcessor ip = stack.getProcessor(n);
+			for(int i=0; i<ip.getPixelCount(); i++){
+				ip.setf(i, bitDepth == 32 ? (float)rnd.nextGaussian() : rnd.nextInt(bitDepth == 8 ? 256 : 65536));
+			}
+		}
+		ImagePlus imp = new ImagePlus("stack", stack);
+		imp.setDimensions(nchannels, nslices, nframes);
+		String path = new File(m_tmp.getRoot(), "stack" + bitDepth + ".tif").getPath();
+		assertTrue(new FileSaver(imp).saveAsTiffStack(path));
+		return new Opener().openImage(path);
+	}
+
+	private static void check(ImageStack expected, ImageStack actual, int n){
+		Object a = actual.getProcessor(n).getPixels();
+		Object e = expected.getProcessor(n).getPixels();
+		if (e instanceof byte[]) assertArrayEquals("slice " + n, (byte[])e, (byte[])a);
+		else if (e instanceof short[]) assertArrayEquals("slice " + n, (short[])e, (short[])a);
+		else assertArrayEquals("slice " + n, (float[])e, (float[])a, 0);
+	}
+
+	@Test
+	public void slicesMatchDecodedStack() throws IOException {
+		for(int depth : new int[]{8, 16, 32}){
+			ImagePlus imp = saved(depth, 1, 12, 1);
+			MappedStack mapped = MappedStack.open(imp);
+			assertNotNull(mapped);
+			try{
+				// Forwards, with a stride, backwards and at random
+				for(int n=1; n<=12; n++) check(imp.getStack(), mapped, n);
+				for(int n=1; n<=12; n+=3) check(imp.getStack(), mapped, n);
+				for(int n=12; n>=1; n--) check(imp.getStack(), mapped, n);
+				Random rnd = new Random(depth);
+				for(int i=0; i<20; i++) check(imp.getStack(), mapped, 1 + rnd.nextInt(12));
+			}finally{
+				mapped.close();
+			}
+		}
+	}
+
+	@Test
+	public void framesReadConcurrently() throws Exception {
+		final ImagePlus imp = saved(16, 2, 5, 4);
+		final MappedStack mapped = MappedStack.open(imp);
+		assertNotNull(mapped);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try{
+			// Each task reads the z slices of one frame, several frames at once
+			List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+			for(int t=1; t<=4; t++){
+				final int frame = t;
+				tasks.add(pool.submit(new Callable<Object>() {
+					public Object call(){
+						FrameStack expected = new FrameStack(imp, imp.getStack(), 2, frame);
+						FrameStack actual = new FrameStack(imp, mapped, 2, frame);
+						for(int z=1; z<=5; z++) check(expected, actual, z);
+						return null;
+					}
+				}));
+			}
+			for(Future<Object> f : tasks) f.get();
+
+			// The window of this thread follows the stride of the frame
+			FrameStack frame = new FrameStack(imp, mapped, 1, 3);
+			frame.getProcessor(1);
+			frame.getProcessor(2);
+			MappedStack.Window w = mapped.m_window.get();
+			assertEquals(2, w.stride);
+			assertEquals(new TreeSet<Integer>(Arrays.asList(25, 27, 29, 31)), new TreeSet<Integer>(w.slices.keySet()));
+		}finally{
+			pool.shutdownNow();
+			mapped.close();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+import ij.measure.*;
+import java.awt.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// Metrics of boxes on calibrated and uncalibrated stacks
+public class ObjectMetricsTest {
+	static final double TOL = 1e-9;
+
+	// Mask of the box x0..x0+w-1, y0..y0+h-1 on a width x height slice
+	private static byte[] box(int width, int height, int x0, int y0, int w, int h){
+		byte[] mask = new byte[width*height];
+		for(int y=y0; y<y0+h; y++){
+			for(int x=x0; x<x0+w; x++){
+				mask[y*width + x] = (byte)255;
+			}
+		}
+		return mask;
+	}
+
+	// 4 x 3 box on slices 2 to 4 of a 10 x 8 x 5 stack, voxels of 0.5 x 2 x 3
+	private static ObjectMetrics calibratedBox(){
+		Calibration cal = new Calibration();
+		cal.pixelWidth = 0.5;
+		cal.pixelHeight = 2;
+		cal.pixelDepth = 3;
+		ObjectMetrics om = ObjectMetrics.forCalibration(10, 8, cal, 7);
+		for(int z=1; z<=5; z++){
+			om.addSlice(z, z >= 2 && z <= 4 ? box(10, 8, 2, 1, 4, 3) : new byte[80]);
+		}
+		om.finish();
+		return om;
+	}
+
+	@Test
+	public void volumeOfCalibratedBox(){
+		ObjectMetrics om = calibratedBox();
+		assertEquals(36, om.getVoxelCount());
+		assertEquals(36*0.5*2*3, om.getVolume(), TOL);
+	}
+
+	@Test
+	public void surfaceOfCalibratedBox(){
+		// Contour through the pixel centers with cut corners, times the slice
+		// spacing, plus the top and bottom faces
+		double contour = 2*3*0.5 + 2*2*2 + 4*Math.sqrt(0.5*0.5 + 2*2)/2;
+		assertEquals(3*contour*3 + 2*12*0.5*2, calibratedBox().getSurface(), TOL);
+	}
+
+	@Test
+	public void centroidAndBoundsOfCalibratedBox(){
+		ObjectMetrics om = calibratedBox();
+		assertArrayEquals(new double[]{4*0.5, 2.5*2, 2.5*3}, om.getCentroid(), TOL);
+		assertArrayEquals(new double[]{1, 2, 3, 2, 6, 9}, om.getBounds(), TOL);
+	}
+
+	@Test
+	public void uncalibratedUsesSlicePixels(){
+		ObjectMetrics om = ObjectMetrics.forCalibration(4, 4, new Calibration(), 2.5);
+		om.addSlice(1, box(4, 4, 0, 0, 2, 2));
+		om.addSlice(2, box(4, 4, 0, 0, 2, 2));
+		om.finish();
+		assertEquals(8*2.5, om.getVolume(), TOL);
+		assertEquals(1.0*2.5, om.getCentroid()[2], TOL);
+	}
+
+	@Test
+	public void gapClosesBothFaces(){
+		// Single pixels on slices 1 and 3: four faces of one pixel, no contour
+		ObjectMetrics om = new ObjectMetrics(3, 3, 1, 1, 1);
+		om.addSlice(1, box(3, 3, 1, 1, 1, 1));
+		om.addSlice(3, box(3, 3, 1, 1, 1, 1));
+		om.finish();
+		double contour = 4*Math.sqrt(2)/2;
+		assertEquals(2*contour + 4, om.getSurface(), TOL);
+	}
+
+	@Test
+	public void runsMatchMasks(){
+		// Random slices, some empty or after a gap, given as masks and as runs
+		java.util.Random rnd = new java.util.Random(5);
+		int width = 17, height = 13;
+		ObjectMetrics masks = new ObjectMetrics(width, height, 0.7, 1.3, 2.1);
+		ObjectMetrics runs = new ObjectMetrics(width, height, 0.7, 1.3, 2.1);
+		RunLengthMask rlm = new RunLengthMask(width, height, 1);
+		Rectangle frame = new Rectangle(0, 0, width, height);
+		for(int z=1; z<=12; z+=rnd.nextInt(3) == 0 ? 2 : 1){
+			byte[] mask = new byte[width*height];
+			double p = rnd.nextDouble();
+			for(int i=0; i<mask.length; i++){
+				if (rnd.nextDouble() < p) mask[i] = 1;
+			}
+			masks.addSlice(z, mask);
+			runs.addRuns(z, rlm.encode(mask, frame));
+		}
+		masks.finish();
+		runs.finish();
+		assertEquals(masks.getVoxelCount(), runs.getVoxelCount());
+		assertEquals(masks.getSurface(), runs.getSurface(), TOL);
+		assertArrayEquals(masks.getCentroid(), runs.getCentroid(), TOL);
+		assertArrayEquals(masks.getBounds(), runs.getBounds(), TOL);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsSlicesOutOfOrder(){
+		ObjectMetrics om = new ObjectMetrics(3, 3, 1, 1, 1);
+		om.addSlice(2, new byte[9]);
+		om.addSlice(1, new byte[9]);
+	}
+}
@@ -0,0 +1,69 @@
+import ij.process.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// Ray lengths to the polygon outline from its angle bins
+public class PolygonIndexTest {
+	static final double TOL = 1e-9;
+
+	// Square of half side 10 centered on (50, 50)
+	private static FloatPolygon square(){
+		return new FloatPolygon(new float[]{40, 60, 60, 40}, new float[]{40, 40, 60, 60});
+	}
+
+	@Test
+	public void squareFromCenter(){
+		PolygonIndex index = new PolygonIndex(square(), 50, 50);
+		for(int i=0; i<360; i++){
+			double ang = i*2*Math.PI/360;
+			double cos = Math.cos(ang), sin = Math.sin(ang);
+			double expected = 10/Math.max(Math.abs(cos), Math.abs(sin));
+			assertEquals("angle " + i, expected, index.getIntersectionLength(ang, cos, sin), TOL);
+		}
+	}
+
+	@Test
+	public void squareFromCorner(){
+		// Rays leaving the square from a corner have no length
+		PolygonIndex index = new PolygonIndex(square(), 40, 40);
+		assertEquals(20*Math.sqrt(2), index.getIntersectionLength(Math.PI/4), TOL);
+		assertEquals(20, index.getIntersectionLength(0), TOL);
+		assertEquals(20, index.getIntersectionLength(Math.PI/2), TOL);
+		assertEquals(0, index.getIntersectionLength(Math.PI), TOL);
+		assertEquals(0, index.getIntersectionLength(5*Math.PI/4), TOL);
+	}
+
+	@Test
+	public void farthestCrossingOfConcaveOutline(){
+		// U shape open at the top: the vertical ray from (5, 1) crosses the
+		// floor of the notch at y = 4 and the outer edge at y = 10
+		FloatPolygon u = new FloatPolygon(new float[]{0, 10, 10, 7, 7, 3, 3, 0},
+				new float[]{0, 0, 10, 10, 4, 4, 10, 10});
+		PolygonIndex index = new PolygonIndex(u, 5, 1);
+		assertEquals(3, index.getIntersectionLength(Math.PI/2), TOL);
+		index = new PolygonIndex(u, 1, 1);
+		assertEquals(9, index.getIntersectionLength(Math.PI/2), TOL);
+	}
+
+	@Test
+	public void binsMatchSingleBin(){
+		// A star with many vertices, every edge tested in one bin
+		Random rnd = new Random(7);
+		int n = 500;
+		float[] xs = new float[n], ys = new float[n];
+		for(int i=0; i<n; i++){
+			double ang = i*2*Math.PI/n, r = 20 + 30*rnd.nextDouble();
+			xs[i] = (float)(100 + r*Math.cos(ang));
+			ys[i] = (float)(100 + r*Math.sin(ang));
+		}
+		FloatPolygon star = new FloatPolygon(xs, ys);
+		PolygonIndex index = new PolygonIndex(star, 103.5, 98.25);
+		PolygonIndex single = new PolygonIndex(star, 103.5, 98.25, 1);
+		for(int i=0; i<3600; i++){
+			double ang = i*2*Math.PI/3600;
+			assertEquals("angle " + i, single.getIntersectionLength(ang), index.getIntersectionLength(ang), TOL);
+			assertTrue(index.getEdgeCount(ang) < n);
+		}
+	}
+}
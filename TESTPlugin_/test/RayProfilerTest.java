@@ -0,0 +1,77 @@
+import ij.*;
+import ij.gui.*;
+import ij.measure.*;
+import ij.process.*;
+import java.util.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// Ray statistics against the profile of ProfilePlot for the same straight line
+public class RayProfilerTest {
+	private static ImagePlus image(int bitDepth){
+		Random rnd = new Random(bitDepth);
+		ImageProcessor ip = bitDepth == 8 ? new ByteProcessor(40, 30)
+				: bitDepth == 16 ? new ShortProcessor(40, 30) : new FloatProcessor(40, 30);
+		for(int i=0; i<ip.getPixelCount(); i++){
+			ip.setf(i, bitDepth == 32 ? (float)(rnd.nextGaussian()*50) : rnd.nextInt(bitDepth == 8 ? 256 : 4096));
+		}
+		return new ImagePlus("rays" + bitDepth, ip);
+	}
+
+	// 8-bit image with a calibration function (values from the calibration table)
+	private static ImagePlus calibrated(){
+		ImagePlus imp = image(8);
+		imp.getCalibration().setFunction(Calibration.STRAIGHT_LINE, new double[]{-20, 0.5}, "u");
+		return imp;
+	}
+
+	// max, mean, integral and radius of the maximum of a ProfilePlot profile;
+	// points outside the image (NaN without interpolation) are skipped
+	private static double[] expected(ImagePlus imp, double x1, double y1, double x2, double y2){
+		imp.setRoi(new Line(x1, y1, x2, y2));
+		double[] prof = new ProfilePlot(imp).getProfile();
+		imp.deleteRoi();
+		double max = -Double.MAX_VALUE, sum = 0;
+		int imax = 0, count = 0;
+		for(int i=0; i<prof.length; i++){
+			if (Double.isNaN(prof[i])) continue;
+			if (prof[i] > max){
+				max = prof[i];
+				imax = i;
+			}
+			sum += prof[i];
+			count++;
+		}
+		double len = Math.hypot(x2 - x1, y2 - y1);
+		double step = len/Math.round(len);
+		return new double[]{max, sum/count, sum*step, imax*step};
+	}
+
+	@Test
+	public void matchesProfilePlot(){
+		double[][] lines = {
+				{20, 15, 35, 15},		// horizontal
+				{20, 15, 20, 2},		// vertical
+				{20.5, 15.5, 3.2, 27.9},
+				{10.3, 4.7, 37.6, 22.1},
+				{20, 15, 45, 15}};		// leaves the image
+		boolean saved = PlotWindow.interpolate;
+		try{
+			for(boolean interpolate : new boolean[]{false, true}){
+				PlotWindow.interpolate = interpolate;
+				for(int depth : new int[]{8, 16, 32, 0}){
+					ImagePlus imp = depth > 0 ? image(depth) : calibrated();
+					RayProfiler profiler = new RayProfiler(imp);
+					for(double[] l : lines){
+						String what = (depth > 0 ? depth + "-bit " : "calibrated ") + Arrays.toString(l) + (interpolate ? " interpolated" : "");
+						double[] stats = new double[RayProfiler.STATISTICS.length];
+						profiler.sample(l[0], l[1], l[2], l[3], stats);
+						assertArrayEquals(what, expected(imp, l[0], l[1], l[2], l[3]), stats, 1e-6);
+					}
+				}
+			}
+		}finally{
+			PlotWindow.interpolate = saved;
+		}
+	}
+}
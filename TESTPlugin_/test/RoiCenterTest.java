@@ -0,0 +1,68 @@
+import ij.gui.*;
+import ij.process.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// Centers of known shapes and the cache of intensity centroids
+public class RoiCenterTest {
+	static final double TOL = 1e-9;
+
+	@Test
+	public void areaCentroidOfKnownShapes(){
+		assertArrayEquals(new double[]{5, 5}, RoiCenter.getAreaCentroid(new Roi(2, 4, 6, 2)), TOL);
+
+		Roi triangle = new PolygonRoi(new float[]{0, 6, 0}, new float[]{0, 0, 3}, 3, Roi.POLYGON);
+		assertArrayEquals(new double[]{2, 1}, RoiCenter.getAreaCentroid(triangle), TOL);
+
+		// Clockwise order gives the same centroid
+		triangle = new PolygonRoi(new float[]{0, 0, 6}, new float[]{0, 3, 0}, 3, Roi.POLYGON);
+		assertArrayEquals(new double[]{2, 1}, RoiCenter.getAreaCentroid(triangle), TOL);
+	}
+
+	@Test
+	public void intensityCentroidOfKnownImage(){
+		FloatProcessor fp = new FloatProcessor(10, 10);
+		Roi roi = new Roi(2, 2, 4, 4);
+
+		// Uniform inside the roi: center of the rectangle
+		fp.setValue(1);
+		fp.fill(roi);
+		fp.setf(0, 0, 100);
+		RayProfiler profiler = new RayProfiler((float[])fp.getPixels(), 10, 10, false);
+		assertArrayEquals(new double[]{4, 4}, RoiCenter.getIntensityCentroid(roi, profiler), TOL);
+
+		// Two weighted pixels, at pixel centers
+		fp = new FloatProcessor(10, 10);
+		fp.setf(2, 2, 1);
+		fp.setf(5, 2, 3);
+		profiler = new RayProfiler((float[])fp.getPixels(), 10, 10, false);
+		assertArrayEquals(new double[]{4.75, 2.5}, RoiCenter.getIntensityCentroid(roi, profiler), TOL);
+
+		// No signal: area centroid
+		profiler = new RayProfiler(new float[100], 10, 10, false);
+		assertArrayEquals(new double[]{4, 4}, RoiCenter.getIntensityCentroid(roi, profiler), TOL);
+	}
+
+	@Test
+	public void cacheFollowsPixelContents(){
+		RoiCenter center = new RoiCenter();
+		center.setMode(RoiCenter.MODES[RoiCenter.INTENSITY]);
+		Roi roi = new Roi(0, 0, 4, 4);
+
+		// New snapshots of the same byte image share one entry
+		ByteProcessor bp = new ByteProcessor(8, 8);
+		bp.set(1, 1, 10);
+		double[] c = center.getCenter(roi, new RayProfiler(bp, null, false));
+		assertArrayEquals(new double[]{1.5, 1.5}, c, TOL);
+		assertArrayEquals(c, center.getCenter(roi, new RayProfiler(bp, null, false)), TOL);
+		assertEquals(1, center.m_cache.size());
+
+		// Float pixels edited in place are not served from the cache
+		FloatProcessor fp = new FloatProcessor(8, 8);
+		fp.setf(1, 1, 10);
+		assertArrayEquals(new double[]{1.5, 1.5}, center.getCenter(roi, new RayProfiler(fp, null, false)), TOL);
+		fp.setf(1, 1, 0);
+		fp.setf(3, 2, 10);
+		assertArrayEquals(new double[]{3.5, 2.5}, center.getCenter(roi, new RayProfiler(fp, null, false)), TOL);
+	}
+}
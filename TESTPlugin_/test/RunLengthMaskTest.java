@@ -0,0 +1,118 @@
+import java.awt.*;
+import java.io.*;
+import org.junit.*;
+import org.junit.rules.*;
+import static org.junit.Assert.*;
+
+// Binary .rlm format written by Volume_Analysis and read back by Calculate volume
+public class RunLengthMaskTest {
+	@Rule
+	public TemporaryFolder m_tmp = new TemporaryFolder();
+
+	// Two objects on a 7x5x3 stack; object 2 touches the image border
+	private static RunLengthMask sample(){
+		RunLengthMask rlm = new RunLengthMask(7, 5, 3);
+		rlm.setRuns(1, 1, new int[]{0, 1, 3, 2, 0, 7});
+		rlm.setRuns(2, 1, new int[]{1, 2, 4});
+		rlm.setRuns(2, 2, new int[]{3, 5, 7, 4, 0, 1, 4, 6, 7});
+		byte[] mask = {1, 0, 1, 1, 1, 0};
+		rlm.setMask(3, 2, mask, new Rectangle(5, 3, 3, 2));
+		return rlm;
+	}
+
+	@Test
+	public void encodeClipsToImage(){
+		RunLengthMask rlm = sample();
+		assertArrayEquals(new int[]{3, 5, 6, 4, 5, 7}, rlm.getRuns(3, 2));
+	}
+
+	@Test
+	public void writeReadRoundTrip() throws IOException {
+		RunLengthMask rlm = sample();
+		String path = new File(m_tmp.getRoot(), "objects.rlm").getPath();
+		rlm.write(path);
+		RunLengthMask back = RunLengthMask.read(path);
+
+		assertEquals(rlm.getWidth(), back.getWidth());
+		assertEquals(rlm.getHeight(), back.getHeight());
+		assertEquals(rlm.getSize(), back.getSize());
+		assertArrayEquals(rlm.getLabels(), back.getLabels());
+		for(int z=1; z<=rlm.getSize(); z++){
+			assertArrayEquals(rlm.getLabels(z), back.getLabels(z));
+			for(int label : rlm.getLabels(z)){
+				assertArrayEquals(rlm.getRuns(z, label), back.getRuns(z, label));
+			}
+			assertArrayEquals(rlm.getMask(z, 0), back.getMask(z, 0));
+		}
+	}
+
+	@Test
+	public void emptyMaskRoundTrip() throws IOException {
+		String path = new File(m_tmp.getRoot(), "empty.rlm").getPath();
+		new RunLengthMask(4, 4, 2).write(path);
+		RunLengthMask back = RunLengthMask.read(path);
+		assertEquals(2, back.getSize());
+		assertEquals(0, back.getLabels().length);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherFiles() throws IOException {
+		File file = m_tmp.newFile("other.rlm");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(0x12345678);
+		out.close();
+		RunLengthMask.read(file.getPath());
+	}
+
+	// File with a 4x4x2 header followed by the ints of body
+	private String file(String name, int... body) throws IOException {
+		File file = m_tmp.newFile(name);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(RunLengthMask.MAGIC);
+		out.writeInt(RunLengthMask.VERSION);
+		out.writeInt(4);
+		out.writeInt(4);
+		out.writeInt(2);
+		for(int v : body) out.writeInt(v);
+		out.close();
+		return file.getPath();
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsSlicesOutOfRange() throws IOException {
+		RunLengthMask.read(file("range.rlm", 3));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsNegativeRunCount() throws IOException {
+		RunLengthMask.read(file("negative.rlm", 1, 1, -1, 0));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsRunCountBeyondFile() throws IOException {
+		RunLengthMask.read(file("huge.rlm", 1, 1, 8, 0, 0, 1, 0));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsBadLabel() throws IOException {
+		RunLengthMask.read(file("label.rlm", 1, 0, 1, 0, 0, 1, 0));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsRunsOutsideImage() throws IOException {
+		RunLengthMask.read(file("outside.rlm", 1, 1, 1, 0, 2, 5, 0));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsBadSize() throws IOException {
+		File file = m_tmp.newFile("size.rlm");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeInt(RunLengthMask.MAGIC);
+		out.writeInt(RunLengthMask.VERSION);
+		out.writeInt(4);
+		out.writeInt(4);
+		out.writeInt(-1);
+		out.close();
+		RunLengthMask.read(file.getPath());
+	}
+}
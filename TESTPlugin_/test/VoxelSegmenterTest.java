@@ -0,0 +1,120 @@
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+import org.junit.*;
+import static org.junit.Assert.*;
+
+// Labelling of thresholded voxels on hand-made stacks ('#' inside, '.' outside)
+public class VoxelSegmenterTest {
+	private static ImageStack stack(String[]... slices){
+		int width = slices[0][0].length(), height = slices[0].length;
+		ImageStack stack = new ImageStack(width, height);
+		for(String[] rows : slices){
+			ByteProcessor bp = new ByteProcessor(width, height);
+			for(int y=0; y<height; y++){
+				for(int x=0; x<width; x++){
+					if (rows[y].charAt(x) == '#') bp.set(x, y, 200);
+				}
+			}
+			stack.addSlice(bp);
+		}
+		return stack;
+	}
+
+	// Object of each seed on slice 1 as a mask labelled from 1
+	private static RunLengthMask objects(ImageStack stack, int min_area, Roi... seeds){
+		VoxelSegmenter seg = new VoxelSegmenter(128, 255, min_area);
+		seg.label(stack);
+		int[] zs = new int[seeds.length];
+		java.util.Arrays.fill(zs, 1);
+		int[][] roots = seg.getObjectRoots(seeds, zs);
+		RunLengthMask mask = new RunLengthMask(stack.getWidth(), stack.getHeight(), stack.getSize());
+		for(int k=0; k<roots.length; k++){
+			seg.addTo(mask, roots[k], k+1);
+		}
+		return mask;
+	}
+
+	// Object a is joined through the slices, object b is 8-connected on slice 2
+	private static ImageStack twoObjects(){
+		return stack(new String[]{
+				"##........",
+				"##........",
+				"..........",
+				".......##.",
+				".......##.",
+				".........."},
+			new String[]{
+				".##.......",
+				"..........",
+				"......#...",
+				".......#..",
+				"..........",
+				"....#....."},
+			new String[]{
+				"..##......",
+				"..##......",
+				"..........",
+				"..........",
+				"..........",
+				"....###..."});
+	}
+
+	@Test
+	public void joinsOverlapsOfAdjacentSlices(){
+		RunLengthMask mask = objects(twoObjects(), 0, new Roi(0, 0, 1, 1), new Roi(7, 3, 1, 1));
+		assertArrayEquals(new int[]{0, 0, 2, 1, 0, 2}, mask.getRuns(1, 1));
+		assertArrayEquals(new int[]{0, 1, 3}, mask.getRuns(2, 1));
+		assertArrayEquals(new int[]{0, 2, 4, 1, 2, 4}, mask.getRuns(3, 1));
+
+		assertArrayEquals(new int[]{3, 7, 9, 4, 7, 9}, mask.getRuns(1, 2));
+		assertArrayEquals(new int[]{2, 6, 7, 3, 7, 8}, mask.getRuns(2, 2));
+		assertArrayEquals(new int[0], mask.getRuns(3, 2));
+	}
+
+	@Test
+	public void unseededComponentsAreLeftOut(){
+		RunLengthMask mask = objects(twoObjects(), 0, new Roi(0, 0, 1, 1));
+		assertArrayEquals(new int[]{1}, mask.getLabels());
+		for(int z=1; z<=3; z++){
+			assertArrayEquals(new int[0], mask.getRuns(z, 2));
+		}
+	}
+
+	@Test
+	public void componentGoesToFirstSeed(){
+		// Both seeds are on pixels of object a: the second one gets nothing
+		RunLengthMask mask = objects(twoObjects(), 0, new Roi(0, 0, 1, 1), new Roi(1, 1, 1, 1));
+		assertArrayEquals(new int[]{1}, mask.getLabels());
+		assertArrayEquals(new int[]{0, 0, 2, 1, 0, 2}, mask.getRuns(1, 1));
+		assertArrayEquals(new int[]{0, 2, 4, 1, 2, 4}, mask.getRuns(3, 1));
+		for(int z=1; z<=3; z++){
+			assertArrayEquals(new int[0], mask.getRuns(z, 2));
+		}
+	}
+
+	@Test
+	public void smallComponentsDoNotLink(){
+		// The single pixel of slice 2 joins the pieces of slices 1 and 3
+		// unless components up to one pixel are ignored
+		ImageStack stack = stack(new String[]{
+				"###.",
+				"....",
+				"...."},
+			new String[]{
+				".#..",
+				"....",
+				"...."},
+			new String[]{
+				".###",
+				"....",
+				"...."});
+		RunLengthMask mask = objects(stack, 0, new Roi(0, 0, 1, 1));
+		assertArrayEquals(new int[]{0, 1, 4}, mask.getRuns(3, 1));
+
+		mask = objects(stack, 1, new Roi(0, 0, 1, 1));
+		assertArrayEquals(new int[]{0, 0, 3}, mask.getRuns(1, 1));
+		assertArrayEquals(new int[0], mask.getRuns(2, 1));
+		assertArrayEquals(new int[0], mask.getRuns(3, 1));
+	}
+}
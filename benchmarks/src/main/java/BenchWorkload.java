@@ -0,0 +1,196 @@
+import ij.*;
+import ij.process.*;
+import ij.gui.*;
+import ij.plugin.filter.*;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+// Synthetic images and polygons for the benchmarks. Private members of
+// Volume_Analysis are reached through method handles.
+public class BenchWorkload implements bench.Workload {
+	static final double LOW = 10000, HIGH = 100000;
+
+	int m_angles;
+	Roi m_polygon;						// star polygon around the image center
+	double[] m_com;
+	PolygonIndex m_index;
+	RayProfiler m_profiler;
+	AngleAnalyzer m_analyzer;
+	Roi m_oval1, m_oval2;				// overlapping ovals off the pixel grid
+	Roi m_traced1, m_traced2;			// overlapping traced rois
+	RoiMask m_oval1_mask, m_traced1_mask;	// built once per slice by the sweep
+	ImagePlus m_stack;					// thresholded blobs
+	Roi m_seed;
+	SliceTable m_table;					// traced slices of m_stack
+
+	Volume_Analysis m_volume = new Volume_Analysis();
+	MethodHandle m_check_overlapping, m_get_roi_area, m_grow_object, m_find_objects;
+
+	public BenchWorkload(int size, int vertices, int angles, int slices) throws ReflectiveOperationException {
+		Random rnd = new Random(1);
+		m_angles = angles;
+
+		// Image with smooth random intensities
+		FloatProcessor fp = new FloatProcessor(size, size);
+		for(int i=0; i<size*size; i++){
+			fp.setf(i, 1000 + rnd.nextInt(1000));
+		}
+		fp.smooth();
+		ImagePlus imp = new ImagePlus("profile", fp);
+
+		// Star polygon
+		float[] xs = new float[vertices], ys = new float[vertices];
+		double c = size/2.0;
+		for(int i=0; i<vertices; i++){
+			double a = 2*Math.PI*i/vertices;
+			double r = size*(0.25 + 0.15*rnd.nextDouble());
+			xs[i] = (float)(c + r*Math.cos(a));
+			ys[i] = (float)(c + r*Math.sin(a));
+		}
+		m_polygon = new PolygonRoi(xs, ys, vertices, Roi.POLYGON);
+		m_com = RoiCenter.getAreaCentroid(m_polygon);
+		m_index = new PolygonIndex(m_polygon.getFloatPolygon(), m_com[0], m_com[1]);
+		m_profiler = new RayProfiler(imp);
+		m_analyzer = new AngleAnalyzer(angles);
+
+		// Roi pairs for the overlap test
+		m_oval1 = new OvalRoi(size*0.2 + 0.3, size*0.2 + 0.3, size*0.4, size*0.4);
+		m_oval2 = new OvalRoi(size*0.5 + 0.7, size*0.5 + 0.7, size*0.4, size*0.4);
+		m_traced1 = trace(m_oval1, size);
+		m_traced2 = trace(m_oval2, size);
+		m_oval1_mask = new RoiMask(m_oval1);
+		m_traced1_mask = new RoiMask(m_traced1);
+
+		// Stack of random blobs with a column through all slices
+		ImageStack stack = new ImageStack(size, size);
+		for(int z=0; z<slices; z++){
+			ShortProcessor sp = new ShortProcessor(size, size);
+			sp.setColor(30000);
+			for(int k=0; k<size/16; k++){
+				double r = size*(0.02 + 0.05*rnd.nextDouble());
+				sp.fill(new OvalRoi(rnd.nextDouble()*(size - 2*r), rnd.nextDouble()*(size - 2*r), 2*r, 2*r));
+			}
+			sp.fill(new OvalRoi(c - size/20.0, c - size/20.0, size/10.0, size/10.0));
+			stack.addSlice(sp);
+		}
+		m_stack = new ImagePlus("stack", stack);
+		m_stack.getProcessor().setThreshold(LOW, HIGH, ImageProcessor.NO_LUT_UPDATE);
+		m_seed = new OvalRoi(c - size/40.0, c - size/40.0, size/20.0, size/20.0);
+
+		m_check_overlapping = handle("checkOverlapping", Roi.class, RoiMask.class, Roi.class, RunStats.class);
+		m_get_roi_area = handle("getRoiArea", Roi.class, RunStats.class);
+		m_grow_object = handle("growObject", SliceTable.class, Roi.class, int.class, int.class, CancelFlag.class, RunStats.class);
+		m_find_objects = handle("findObjects", ImagePlus.class, Roi[].class, int[].class, int.class, int.class, int.class,
+				CancelFlag.class, RunStats.class);
+
+		// Trace every slice once
+		m_table = new SliceTable(stack, null, m_stack.getID(), LOW, HIGH, RunStats.NONE);
+		for(int z=1; z<=slices; z++){
+			m_table.get(z);
+		}
+	}
+
+	// Outline of the pixels of roi, on pixel edges
+	private static Roi trace(Roi roi, int size){
+		ByteProcessor bp = new ByteProcessor(size, size);
+		bp.setColor(255);
+		bp.fill(roi);
+		bp.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+		return new ThresholdToSelection().convert(bp);
+	}
+
+	private static MethodHandle handle(String name, Class<?>... types) throws ReflectiveOperationException {
+		Method m = Volume_Analysis.class.getDeclaredMethod(name, types);
+		m.setAccessible(true);
+		return MethodHandles.lookup().unreflect(m);
+	}
+
+	public double intersectionLengths(){
+		double sum = 0;
+		for(int i=0; i<m_angles; i++){
+			sum += m_index.getIntersectionLength(2*i*Math.PI/m_angles);
+		}
+		return sum;
+	}
+
+	public double[] vertexAverage(){
+		return RoiCenter.getVertexAverage(m_polygon);
+	}
+
+	public double[] areaCentroid(){
+		return RoiCenter.getAreaCentroid(m_polygon);
+	}
+
+	public double[] intensityCentroid(){
+		return RoiCenter.getIntensityCentroid(m_polygon, m_profiler);
+	}
+
+	public double[] profile(){
+		return m_analyzer.getProfile(m_profiler, m_polygon, m_com);
+	}
+
+	public boolean checkOverlapping(){
+		return checkOverlapping(m_oval1, m_oval1_mask, m_oval2);
+	}
+
+	public boolean checkOverlappingAligned(){
+		return checkOverlapping(m_traced1, m_traced1_mask, m_traced2);
+	}
+
+	private boolean checkOverlapping(Roi roi1, RoiMask mask1, Roi roi2){
+		try{
+			return (boolean)m_check_overlapping.invoke(m_volume, roi1, mask1, roi2, RunStats.NONE);
+		}catch(Throwable e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int roiArea(){
+		try{
+			return (int)m_get_roi_area.invoke(m_polygon, RunStats.NONE);
+		}catch(Throwable e){
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int growObject(){
+		boolean[][] selected;
+		try{
+			selected = (boolean[][])m_grow_object.invoke(m_volume, m_table, m_seed, 1, 0, new CancelFlag(), RunStats.NONE);
+		}catch(Throwable e){
+			throw new RuntimeException(e);
+		}
+		int reached = 0;
+		for(int z=1; z<selected.length; z++){
+			if (selected[z] == null) continue;
+			for(boolean sel : selected[z]){
+				if (sel){
+					reached++;
+					break;
+				}
+			}
+		}
+		return reached;
+	}
+
+	public int findObjects(){
+		m_volume.m_slice_cache.clear();
+		return findObjectsCached();
+	}
+
+	public int findObjectsCached(){
+		RunLengthMask mask;
+		try{
+			mask = (RunLengthMask)m_find_objects.invoke(m_volume, m_stack, new Roi[]{m_seed}, new int[]{1},
+					(int)LOW, (int)HIGH, 0, new CancelFlag(), RunStats.NONE);
+		}catch(Throwable e){
+			throw new RuntimeException(e);
+		}
+		int reached = 0;
+		for(int z=1; z<=mask.getSize(); z++){
+			if (mask.getLabels(z).length > 0) reached++;
+		}
+		return reached;
+	}
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+// Radial and volumetric hot paths of the plugins on synthetic data, e.g.
+//   java -jar benchmarks/target/benchmarks.jar HotPath -p size=1024 -p vertices=4096
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPathBenchmark {
+	@Param({"512"})
+	int size;							// image width and height
+
+	@Param({"64", "4096"})
+	int vertices;						// polygon vertices
+
+	@Param({"360"})
+	int angles;
+
+	@Param({"16"})
+	int slices;
+
+	Workload m_work;
+
+	@Setup
+	public void setup() throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		m_work = (Workload)Class.forName("BenchWorkload")
+				.getConstructor(int.class, int.class, int.class, int.class)
+				.newInstance(size, vertices, angles, slices);
+	}
+
+	@Benchmark
+	public double getIntersectionLength(){
+		return m_work.intersectionLengths();
+	}
+
+	@Benchmark
+	public double[] getVertexAverage(){
+		return m_work.vertexAverage();
+	}
+
+	@Benchmark
+	public double[] getAreaCentroid(){
+		return m_work.areaCentroid();
+	}
+
+	@Benchmark
+	public double[] getIntensityCentroid(){
+		return m_work.intensityCentroid();
+	}
+
+	@Benchmark
+	public double[] getProfile(){
+		return m_work.profile();
+	}
+
+	@Benchmark
+	public boolean checkOverlapping(){
+		return m_work.checkOverlapping();
+	}
+
+	@Benchmark
+	public boolean checkOverlappingAligned(){
+		return m_work.checkOverlappingAligned();
+	}
+
+	@Benchmark
+	public int getRoiArea(){
+		return m_work.roiArea();
+	}
+
+	@Benchmark
+	public int growObject(){
+		return m_work.growObject();
+	}
+
+	@Benchmark
+	public int findObjects(){
+		return m_work.findObjects();
+	}
+
+	@Benchmark
+	public int findObjectsCached(){
+		return m_work.findObjectsCached();
+	}
+}
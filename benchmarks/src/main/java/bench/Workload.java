@@ -0,0 +1,40 @@
+package bench;
+
+// Operations on the plugin classes, which live in the default package and
+// can only be reached from there (see BenchWorkload).
+public interface Workload {
+	// Ray/polygon intersection length for every angle (sum of the lengths)
+	double intersectionLengths();
+
+	// Vertex average of the polygon roi, the default roi center
+	double[] vertexAverage();
+
+	// Area centroid of the polygon roi
+	double[] areaCentroid();
+
+	// Intensity centroid of the polygon roi
+	double[] intensityCentroid();
+
+	// Statistic along every angle from the roi center
+	double[] profile();
+
+	// Overlap test of two rois off the pixel edges
+	boolean checkOverlapping();
+
+	// Overlap test of two traced rois
+	boolean checkOverlappingAligned();
+
+	// Pixel count of the polygon roi
+	int roiArea();
+
+	// Roi geometry propagation from the seed on slice 1 over slices already
+	// traced (number of slices reached)
+	int growObject();
+
+	// Roi geometry reconstruction through the stack from the seed on slice 1,
+	// tracing and rasterizing included (number of slices reached)
+	int findObjects();
+
+	// Same as above with the traced slices already cached
+	int findObjectsCached();
+}